@@ -130,10 +130,24 @@ typedef enum mdm_cli_restart_cause {
 mdm_cli_hdle_t *mdm_cli_connect(const char *client_name, int inst_id, int nb_evts,
                                 const mdm_cli_register_t evts[]);
 
+/**
+ * Reads the configuration of all modem instances and keeps it for the process
+ * lifetime. Calling it is optional: otherwise, the configuration is read on the
+ * first connection to an instance. Processes connecting several clients can call
+ * it once at start-up to take this cost out of the connections.
+ *
+ * @return 0 if successful
+ * @return -1 otherwise
+ */
+int mdm_cli_preload(void);
+
 /**
  * Disconnects the client to Modem Management system and disposes the handle.
  * Modem resource for this client is implicitly released (if not already done)
  * by calling this function.
+ * Once it returns, no callback of the client is running, except the one calling
+ * it if any, and none will be called: the contexts given to mdm_cli_connect can
+ * be freed.
  *
  * @param [in] hdle
  *
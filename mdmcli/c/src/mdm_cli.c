@@ -23,15 +23,27 @@
  * limitations under the License.
  */
 
+#include <pthread.h>
+#include <stdint.h>
 #include <stdlib.h>
+#include <string.h>
 #include <dlfcn.h>
 
 #include "mdm_cli.h"
+
+#if defined(MDM_CLI_HOST)
+/* Host build (benchmarks): no TCS, the library of all instances is given by
+ * MDM_CLI_LIB */
+#include <stdio.h>
+#define ALOGE(fmt, ...) fprintf(stderr, "MDM_CLI: " fmt "\n", ## __VA_ARGS__)
+#define ALOGD(fmt, ...) do { if (0) fprintf(stderr, fmt, ## __VA_ARGS__); } while (0)
+#else
 #include "tcs.h"
 
 #define LOG_NDEBUG 0
 #define LOG_TAG "MDM_CLI"
 #include <utils/Log.h>
+#endif
 
 typedef struct mdm_cli_api {
     mdm_cli_hdle_t * (*connect)(const char *client_name, int inst_id,
@@ -49,55 +61,157 @@ typedef struct mdm_cli_api {
 } mdm_cli_api_t;
 
 typedef struct mdm_cli_ctx {
-    void *lib;
-    mdm_cli_api_t api;
+    const mdm_cli_api_t *api;
     mdm_cli_hdle_t *hdle;
 } mdm_cli_ctx_t;
 
+/* Loaded backend library, shared by all connections using it. Backends are
+ * never unloaded: see mdm_cli_get_backend */
+typedef struct mdm_cli_backend {
+    char *filename;
+    void *lib;
+    mdm_cli_api_t api;
+    struct mdm_cli_backend *next;
+} mdm_cli_backend_t;
+
+static pthread_mutex_t g_backends_lock = PTHREAD_MUTEX_INITIALIZER;
+static mdm_cli_backend_t *g_backends = NULL;
+
+/* Library name of each instance, read once from the configuration. Entries are
+ * never removed: the names stay valid for the process lifetime */
+typedef struct mdm_cli_lib_name {
+    size_t cfg_id;
+    char *filename;
+    struct mdm_cli_lib_name *next;
+} mdm_cli_lib_name_t;
+
+static pthread_mutex_t g_lib_names_lock = PTHREAD_MUTEX_INITIALIZER;
+static mdm_cli_lib_name_t *g_lib_names = NULL;
+
 /**
- * Retrieves the name of the library to load
+ * Looks up a library name in the cache. Must be called with g_lib_names_lock held
  *
  * @param [in] cfg_id Modem instance ID
  *
- * @return the library name. Must be freed by caller
- * @return NULL if the library is not found
+ * @return the library name
+ * @return NULL if not cached
+ */
+static const char *mdm_cli_find_lib_name(size_t cfg_id)
+{
+    for (mdm_cli_lib_name_t *entry = g_lib_names; entry; entry = entry->next) {
+        if (entry->cfg_id == cfg_id)
+            return entry->filename;
+    }
+
+    return NULL;
+}
+
+/**
+ * Adds a library name to the cache. Must be called with g_lib_names_lock held
+ *
+ * @param [in] cfg_id Modem instance ID
+ * @param [in] filename Library name
  */
-static char *mdm_cli_get_lib_name(size_t cfg_id)
+static void mdm_cli_add_lib_name(size_t cfg_id, const char *filename)
 {
-    char *lib = NULL;
+    if (mdm_cli_find_lib_name(cfg_id))
+        return;
+
+    mdm_cli_lib_name_t *entry = calloc(1, sizeof(mdm_cli_lib_name_t));
+    if (entry) {
+        entry->filename = strdup(filename);
+        if (entry->filename) {
+            entry->cfg_id = cfg_id;
+            entry->next = g_lib_names;
+            g_lib_names = entry;
+        } else {
+            free(entry);
+        }
+    }
+}
+
+/**
+ * Reads the library names of all modem instances and adds them to the cache.
+ * Must be called with g_lib_names_lock held
+ *
+ * @param [in] cfg_id Modem instance ID needed by the caller. SIZE_MAX if none
+ *
+ * @return 0 if successful
+ * @return -1 otherwise
+ */
+#if defined(MDM_CLI_HOST)
+static int mdm_cli_read_lib_names(size_t cfg_id)
+{
+    const char *lib = getenv("MDM_CLI_LIB");
+
+    /* All instances are declared, with the same library */
+    if (cfg_id != SIZE_MAX)
+        mdm_cli_add_lib_name(cfg_id, lib ? lib : "libmdmcli_stub.so");
+    return 0;
+}
+#else
+static int mdm_cli_read_lib_names(size_t cfg_id)
+{
+    int ret = -1;
     tcs_handle_t *tcs = tcs_init();
 
+    (void)cfg_id; /* All instances are read */
+
     if (tcs) {
         tcs_cfg_t *cfg = tcs_get_config(tcs);
 
-        if (cfg && (cfg_id <= cfg->nb)) {
+        for (size_t id = 0; cfg && (id < cfg->nb); id++) {
             tcs_libs_t *libs = NULL;
 
             if ((cfg->mdm_struct_type == TCS_CFG_TYPE_XMM) &&
                 (cfg->mdm_struct_size == sizeof(tcs_mdm_info_XMM_t)) &&
                 cfg->mdm_XMM)
-                libs = &cfg->mdm_XMM[cfg_id].libs;
+                libs = &cfg->mdm_XMM[id].libs;
             else if ((cfg->mdm_struct_type == TCS_CFG_TYPE_SOFIA) &&
                      (cfg->mdm_struct_size == sizeof(tcs_mdm_info_SOFIA_t)) &&
                      cfg->mdm_SOFIA)
-                libs = &cfg->mdm_SOFIA[cfg_id].libs;
+                libs = &cfg->mdm_SOFIA[id].libs;
 
             if (libs && libs->lib) {
                 for (ssize_t i = (ssize_t)libs->nb - 1; i >= 0;
                      i--) {
                     if (!strcmp(libs->lib[i].name, "mdmcli")) {
-                        lib = strdup(libs->lib[i].filename);
+                        mdm_cli_add_lib_name(id, libs->lib[i].filename);
                         break;
                     }
                 }
             }
         }
+        if (cfg)
+            ret = 0;
         tcs_dispose(tcs);
     }
 
+    return ret;
+}
+#endif
+
+/**
+ * Retrieves the name of the library to load. The configuration is read on the
+ * first call only, or until the instance is found in it
+ *
+ * @param [in] cfg_id Modem instance ID
+ *
+ * @return the library name. Must not be freed
+ */
+static const char *mdm_cli_get_lib_name(size_t cfg_id)
+{
+    pthread_mutex_lock(&g_lib_names_lock);
+    const char *lib = mdm_cli_find_lib_name(cfg_id);
+    if (!lib) {
+        mdm_cli_read_lib_names(cfg_id);
+        lib = mdm_cli_find_lib_name(cfg_id);
+    }
+    pthread_mutex_unlock(&g_lib_names_lock);
+
     if (!lib) {
-        ALOGE("Library name not found in TCS, use stub");
-        lib = strdup("libmdmcli_stub.so");
+        ALOGE("Library name not found in configuration, use stub");
+        lib = "libmdmcli_stub.so";
     } else {
         ALOGD("library name: %s", lib);
     }
@@ -105,33 +219,45 @@ static char *mdm_cli_get_lib_name(size_t cfg_id)
     return lib;
 }
 
+/**
+ * @see mdm_cli.h
+ */
+int mdm_cli_preload(void)
+{
+    pthread_mutex_lock(&g_lib_names_lock);
+    int ret = mdm_cli_read_lib_names(SIZE_MAX);
+    pthread_mutex_unlock(&g_lib_names_lock);
+
+    return ret;
+}
+
 /**
  * Loads client implementation
  *
- * @param [in] ctx Module context
+ * @param [in] backend Backend to fill
  * @param [in] filename Library name
  *
  * @return 0 if successful
  * @return -1 otherwise
  */
-static int mdm_get_load_lib(mdm_cli_ctx_t *ctx, const char *filename)
+static int mdm_get_load_lib(mdm_cli_backend_t *backend, const char *filename)
 {
     int ret = -1;
 
-    if (ctx && filename) {
+    if (backend && filename) {
         dlerror(); // Clear previous errors if any
-        ctx->lib = dlopen(filename, RTLD_LAZY);
-        if (ctx->lib) {
-            ctx->api.connect = dlsym(ctx->lib, "mdm_cli_connect");
-            ctx->api.disconnect = dlsym(ctx->lib, "mdm_cli_disconnect");
-            ctx->api.acquire = dlsym(ctx->lib, "mdm_cli_acquire");
-            ctx->api.release = dlsym(ctx->lib, "mdm_cli_release");
-            ctx->api.restart = dlsym(ctx->lib, "mdm_cli_restart");
-            ctx->api.shtdwn = dlsym(ctx->lib, "mdm_cli_shutdown");
-            ctx->api.nvm_bkup = dlsym(ctx->lib, "mdm_cli_nvm_bckup");
-            ctx->api.ack_cold = dlsym(ctx->lib, "mdm_cli_ack_cold_reset");
-            ctx->api.ack_shtdwn = dlsym(ctx->lib, "mdm_cli_ack_shutdown");
-            ctx->api.notify_dbg = dlsym(ctx->lib, "mdm_cli_notify_dbg");
+        backend->lib = dlopen(filename, RTLD_LAZY);
+        if (backend->lib) {
+            backend->api.connect = dlsym(backend->lib, "mdm_cli_connect");
+            backend->api.disconnect = dlsym(backend->lib, "mdm_cli_disconnect");
+            backend->api.acquire = dlsym(backend->lib, "mdm_cli_acquire");
+            backend->api.release = dlsym(backend->lib, "mdm_cli_release");
+            backend->api.restart = dlsym(backend->lib, "mdm_cli_restart");
+            backend->api.shtdwn = dlsym(backend->lib, "mdm_cli_shutdown");
+            backend->api.nvm_bkup = dlsym(backend->lib, "mdm_cli_nvm_bckup");
+            backend->api.ack_cold = dlsym(backend->lib, "mdm_cli_ack_cold_reset");
+            backend->api.ack_shtdwn = dlsym(backend->lib, "mdm_cli_ack_shutdown");
+            backend->api.notify_dbg = dlsym(backend->lib, "mdm_cli_notify_dbg");
         }
         const char *err = dlerror();
         if (err)
@@ -143,6 +269,50 @@ static int mdm_get_load_lib(mdm_cli_ctx_t *ctx, const char *filename)
     return ret;
 }
 
+/**
+ * Retrieves the backend of a library, loading it on first use. A loaded backend
+ * is kept for the process lifetime: reconnections, including the one of a single
+ * client, do not load the library again, and backend threads possibly still
+ * running after the last disconnection never lose their code
+ *
+ * @param [in] filename Library name
+ *
+ * @return the API of the backend
+ * @return NULL if the library cannot be loaded
+ */
+static const mdm_cli_api_t *mdm_cli_get_backend(const char *filename)
+{
+    const mdm_cli_api_t *api = NULL;
+
+    pthread_mutex_lock(&g_backends_lock);
+    for (mdm_cli_backend_t *backend = g_backends; backend; backend = backend->next) {
+        if (!strcmp(backend->filename, filename)) {
+            api = &backend->api;
+            break;
+        }
+    }
+
+    if (!api) {
+        mdm_cli_backend_t *backend = calloc(1, sizeof(mdm_cli_backend_t));
+        if (backend) {
+            backend->filename = strdup(filename);
+            if (backend->filename && !mdm_get_load_lib(backend, filename)) {
+                backend->next = g_backends;
+                g_backends = backend;
+                api = &backend->api;
+            } else {
+                if (backend->lib)
+                    dlclose(backend->lib);
+                free(backend->filename);
+                free(backend);
+            }
+        }
+    }
+    pthread_mutex_unlock(&g_backends_lock);
+
+    return api;
+}
+
 /**
  * @see mdm_cli.h
  */
@@ -152,18 +322,18 @@ mdm_cli_hdle_t *mdm_cli_connect(const char *client_name, int inst_id,
     mdm_cli_ctx_t *ctx = NULL;
 
     if (client_name && (inst_id > 0)) {
-        char *filename = mdm_cli_get_lib_name(inst_id - 1);
-        ctx = calloc(1, sizeof(mdm_cli_ctx_t));
+        const mdm_cli_api_t *api = mdm_cli_get_backend(mdm_cli_get_lib_name(inst_id - 1));
 
-        if (ctx && !mdm_get_load_lib(ctx, filename)) {
-            ctx->hdle = ctx->api.connect(client_name, inst_id, nb_evts, evts);
+        if (api && api->connect)
+            ctx = calloc(1, sizeof(mdm_cli_ctx_t));
+        if (ctx) {
+            ctx->api = api;
+            ctx->hdle = api->connect(client_name, inst_id, nb_evts, evts);
             if (!ctx->hdle) {
-                mdm_cli_disconnect((mdm_cli_hdle_t *)ctx);
+                free(ctx);
                 ctx = NULL;
             }
         }
-
-        free(filename);
     }
 
     return (mdm_cli_hdle_t *)ctx;
@@ -178,10 +348,8 @@ int mdm_cli_disconnect(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
     if (ctx) {
-        if ((ctx->hdle) && (ctx->api.disconnect))
-            ret = ctx->api.disconnect(ctx->hdle);
-        if (ctx->lib)
-            dlclose(ctx->lib);
+        if ((ctx->hdle) && (ctx->api->disconnect))
+            ret = ctx->api->disconnect(ctx->hdle);
         free(ctx);
     }
 
@@ -196,8 +364,8 @@ int mdm_cli_acquire(mdm_cli_hdle_t *hdle)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.acquire)
-        ret = ctx->api.acquire(ctx->hdle);
+    if (ctx && ctx->hdle && ctx->api->acquire)
+        ret = ctx->api->acquire(ctx->hdle);
 
     return ret;
 }
@@ -210,8 +378,8 @@ int mdm_cli_release(mdm_cli_hdle_t *hdle)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.release)
-        ret = ctx->api.release(ctx->hdle);
+    if (ctx && ctx->hdle && ctx->api->release)
+        ret = ctx->api->release(ctx->hdle);
 
     return ret;
 }
@@ -226,8 +394,8 @@ int mdm_cli_restart(mdm_cli_hdle_t *hdle, mdm_cli_restart_cause_t cause,
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     const mdm_cli_dbg_info_t *dbg_info = (cause == RESTART_APPLY_UPDATE) ? NULL : data;
 
-    if (ctx && ctx->hdle && ctx->api.restart)
-        ret = ctx->api.restart(ctx->hdle, cause, dbg_info);
+    if (ctx && ctx->hdle && ctx->api->restart)
+        ret = ctx->api->restart(ctx->hdle, cause, dbg_info);
 
     return ret;
 }
@@ -240,8 +408,8 @@ int mdm_cli_shutdown(mdm_cli_hdle_t *hdle)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.shtdwn)
-        ret = ctx->api.shtdwn(ctx->hdle);
+    if (ctx && ctx->hdle && ctx->api->shtdwn)
+        ret = ctx->api->shtdwn(ctx->hdle);
 
     return ret;
 }
@@ -254,8 +422,8 @@ int mdm_cli_nvm_bckup(mdm_cli_hdle_t *hdle)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.nvm_bkup)
-        ret = ctx->api.nvm_bkup(ctx->hdle);
+    if (ctx && ctx->hdle && ctx->api->nvm_bkup)
+        ret = ctx->api->nvm_bkup(ctx->hdle);
 
     return ret;
 }
@@ -268,8 +436,8 @@ int mdm_cli_ack_cold_reset(mdm_cli_hdle_t *hdle)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.ack_cold)
-        ret = ctx->api.ack_cold(ctx->hdle);
+    if (ctx && ctx->hdle && ctx->api->ack_cold)
+        ret = ctx->api->ack_cold(ctx->hdle);
 
     return ret;
 }
@@ -282,8 +450,8 @@ int mdm_cli_ack_shutdown(mdm_cli_hdle_t *hdle)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.ack_shtdwn)
-        ret = ctx->api.ack_shtdwn(ctx->hdle);
+    if (ctx && ctx->hdle && ctx->api->ack_shtdwn)
+        ret = ctx->api->ack_shtdwn(ctx->hdle);
 
     return ret;
 }
@@ -296,8 +464,8 @@ int mdm_cli_notify_dbg(mdm_cli_hdle_t *hdle, const mdm_cli_dbg_info_t *data)
     int ret = -1;
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
 
-    if (ctx && ctx->hdle && ctx->api.notify_dbg)
-        ret = ctx->api.notify_dbg(ctx->hdle, data);
+    if (ctx && ctx->hdle && ctx->api->notify_dbg)
+        ret = ctx->api->notify_dbg(ctx->hdle, data);
 
     return ret;
 }
@@ -26,10 +26,14 @@
 
 #define LOG_TAG "MDMCLI_JNI"
 
+#include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
 #include <assert.h>
+#include <pthread.h>
+#include <sched.h>
+#include <time.h>
 
 #include "utils/Log.h"
 #include "jni.h"
@@ -47,206 +51,769 @@ static struct
 {
     jclass classRef;
     jmethodID callbackRef;
+    jmethodID dbgInfoCallbackRef;
+    jclass stringClassRef;
     JavaVM *mVm;
-    mdm_cli_hdle_t *mMdmHdle;
+    /* Threads attached by this library. Detached by the key destructor on thread exit */
+    pthread_key_t envKey;
 } gContext;
 
-static void callback(mdm_cli_event_t ev)
+/* Must be a power of 2 */
+#define EVENT_RING_SIZE 256
+/* Records only usable by MDM_COLD_RESET and MDM_SHUTDOWN, which the backend waits for */
+#define EVENT_RING_RESERVED 16
+
+typedef struct mdmcli_event_record {
+    int32_t id;
+    int64_t time; /* CLOCK_MONOTONIC, in nanoseconds */
+} mdmcli_event_record_t;
+
+/**
+ * Preallocated ring of events, filled by the backend threads and drained by
+ * a single Java dispatcher thread. Producers are serialized by a spin lock (the
+ * backend may call back from several threads), the consumer takes no lock unless
+ * the ring is empty and it has to sleep.
+ */
+typedef struct mdmcli_event_ring {
+    mdmcli_event_record_t records[EVENT_RING_SIZE];
+    uint32_t head;    /* next record to write. Written by producers only */
+    uint32_t tail;    /* next record to read. Written by the consumer only */
+    uint64_t dropped; /* events lost because the ring was full */
+    int producerLock;
+    bool waiting;     /* the consumer sleeps on cond */
+    bool closed;
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+} mdmcli_event_ring_t;
+
+static inline int64_t monotonicTime()
+{
+    struct timespec ts;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static mdmcli_event_ring_t *ringCreate()
+{
+    mdmcli_event_ring_t *ring = (mdmcli_event_ring_t *)calloc(1, sizeof(mdmcli_event_ring_t));
+
+    if (ring) {
+        pthread_mutex_init(&ring->mutex, NULL);
+        pthread_cond_init(&ring->cond, NULL);
+    }
+    return ring;
+}
+
+static void ringDestroy(mdmcli_event_ring_t *ring)
+{
+    pthread_cond_destroy(&ring->cond);
+    pthread_mutex_destroy(&ring->mutex);
+    free(ring);
+}
+
+static void ringWakeUp(mdmcli_event_ring_t *ring)
+{
+    pthread_mutex_lock(&ring->mutex);
+    pthread_cond_signal(&ring->cond);
+    pthread_mutex_unlock(&ring->mutex);
+}
+
+/**
+ * Queues an event. The last EVENT_RING_RESERVED records are kept for the events
+ * to acknowledge, so that they are not lost because of a flood of other events.
+ *
+ * @return false if the ring is full and the event is dropped
+ */
+static bool ringPush(mdmcli_event_ring_t *ring, mdm_cli_event_t ev, int64_t time)
+{
+    uint32_t size = ((ev == MDM_COLD_RESET) || (ev == MDM_SHUTDOWN)) ?
+                    EVENT_RING_SIZE : EVENT_RING_SIZE - EVENT_RING_RESERVED;
+    bool queued = false;
+
+    while (__atomic_exchange_n(&ring->producerLock, 1, __ATOMIC_ACQUIRE)) {
+        sched_yield();
+    }
+
+    uint32_t head = ring->head;
+    if (head - __atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE) >= size) {
+        __atomic_add_fetch(&ring->dropped, 1, __ATOMIC_RELAXED);
+    } else {
+        mdmcli_event_record_t *record = &ring->records[head & (EVENT_RING_SIZE - 1)];
+        record->id = ev;
+        record->time = time;
+        /* Sequentially consistent so that it is ordered with the waiting load below */
+        __atomic_store_n(&ring->head, head + 1, __ATOMIC_SEQ_CST);
+        queued = true;
+    }
+
+    __atomic_store_n(&ring->producerLock, 0, __ATOMIC_RELEASE);
+
+    if (__atomic_load_n(&ring->waiting, __ATOMIC_SEQ_CST)) {
+        ringWakeUp(ring);
+    }
+
+    return queued;
+}
+
+static void ringClose(mdmcli_event_ring_t *ring)
+{
+    pthread_mutex_lock(&ring->mutex);
+    ring->closed = true;
+    pthread_cond_signal(&ring->cond);
+    pthread_mutex_unlock(&ring->mutex);
+}
+
+/**
+ * Copies at most max records out of the ring. Blocks while the ring is empty.
+ *
+ * @return the number of records copied, -1 if the ring is closed and empty
+ */
+static int ringDrain(mdmcli_event_ring_t *ring, mdmcli_event_record_t *records, int max)
+{
+    uint32_t tail = ring->tail;
+    uint32_t head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+
+    if (head == tail) {
+        pthread_mutex_lock(&ring->mutex);
+        __atomic_store_n(&ring->waiting, true, __ATOMIC_SEQ_CST);
+        while (((head = __atomic_load_n(&ring->head, __ATOMIC_SEQ_CST)) == tail) &&
+               !ring->closed) {
+            pthread_cond_wait(&ring->cond, &ring->mutex);
+        }
+        __atomic_store_n(&ring->waiting, false, __ATOMIC_RELAXED);
+        pthread_mutex_unlock(&ring->mutex);
+
+        if (head == tail) {
+            return -1;
+        }
+    }
+
+    int count = 0;
+    while ((tail != head) && (count < max)) {
+        records[count++] = ring->records[tail & (EVENT_RING_SIZE - 1)];
+        tail++;
+    }
+    __atomic_store_n(&ring->tail, tail, __ATOMIC_RELEASE);
+
+    return count;
+}
+
+/**
+ * Native side of one JniModemStatusMonitor. Its address is handed back to Java
+ * as a long by jni_connect, so that each modem instance owns its own
+ * connection and no global state is shared between instances.
+ */
+typedef struct mdmcli_client {
+    mdm_cli_hdle_t *mdmHdle;
+    int instId;
+    /* Global reference on the owning JniModemStatusMonitor. Events are
+     * delivered to it directly through the mdm_cli_register_t context */
+    jobject monitorRef;
+    /* If set, MDM_COLD_RESET and MDM_SHUTDOWN are acknowledged by the event callback
+     * itself. Otherwise, the Java side acknowledges them once they are handled */
+    bool autoAck;
+    /* If not NULL, events are queued in this ring instead of being delivered by an
+     * upcall. Freed by jni_releaseEventRing once the Java dispatcher has stopped */
+    mdmcli_event_ring_t *ring;
+} mdmcli_client_t;
+
+static inline mdm_cli_hdle_t *getMdmHdle(jlong handle)
+{
+    mdmcli_client_t *client = (mdmcli_client_t *)(intptr_t)handle;
+
+    return client ? client->mdmHdle : NULL;
+}
+
+static void detachCurrentThread(void *env)
+{
+    (void)env;
+    gContext.mVm->DetachCurrentThread();
+}
+
+/**
+ * Returns the JNIEnv of the calling thread. A thread unknown to the VM is
+ * attached on its first call and stays attached until it exits, so that backend
+ * threads pay the attachment only once and not for every event.
+ *
+ * @return the JNIEnv or NULL if the thread can't be attached
+ */
+static JNIEnv *getJniEnv()
+{
+    JNIEnv *env = NULL;
+
+    if (gContext.mVm->GetEnv((void **)&env, JNI_VERSION_1_6) == JNI_OK) {
+        return env;
+    }
+
+    if (gContext.mVm->AttachCurrentThread(&env, NULL) != JNI_OK) {
+        LOGE("Failed to attach thread");
+        return NULL;
+    }
+
+    if (pthread_setspecific(gContext.envKey, env)) {
+        LOGE("Failed to set detach destructor");
+    }
+
+    return env;
+}
+
+/**
+ * @return false if the event could not be handed to Java
+ */
+static bool callback(mdmcli_client_t *client, mdm_cli_event_t ev, int64_t time)
 {
-    JNIEnv *env;
+    JNIEnv *env = getJniEnv();
+
+    if (!env) {
+        return false;
+    }
+
+    env->CallVoidMethod(client->monitorRef, gContext.callbackRef, ev, (jlong)time);
+    /* The thread stays attached: an exception would be left pending otherwise */
+    if (env->ExceptionCheck()) {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+        return false;
+    }
+    return true;
+}
+
+static void dbgInfoCallback(mdmcli_client_t *client, const mdm_cli_dbg_info_t *dbg_info,
+                            int64_t time)
+{
+    JNIEnv *env = getJniEnv();
+
+    /* The thread stays attached: local references must be released explicitly */
+    if (!env || env->PushLocalFrame(MDM_CLI_MAX_NB_DATA + 1) != JNI_OK) {
+        return;
+    }
+
+    size_t size = (dbg_info->nb_data > MDM_CLI_MAX_NB_DATA) ? MDM_CLI_MAX_NB_DATA :
+                  dbg_info->nb_data;
+    jobjectArray data = env->NewObjectArray(size, gContext.stringClassRef, NULL);
+
+    if (data) {
+        for (size_t i = 0; i < size; i++) {
+            if (dbg_info->data && dbg_info->data[i]) {
+                env->SetObjectArrayElement(data, i, env->NewStringUTF(dbg_info->data[i]));
+            }
+        }
+        env->CallVoidMethod(client->monitorRef, gContext.dbgInfoCallbackRef,
+                            (jint)dbg_info->type, data, (jlong)time);
+    }
+
+    if (env->ExceptionCheck()) {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+    env->PopLocalFrame(NULL);
+}
 
-    if (gContext.mVm->AttachCurrentThread(&env, NULL) == JNI_OK) {
-        env->CallStaticVoidMethod(gContext.classRef, gContext.callbackRef, ev);
-        gContext.mVm->DetachCurrentThread();
+/**
+ * Delivers an event to Java, through the event ring if enabled
+ *
+ * @return false if the event is lost: Java will not see it
+ */
+static bool notifyEvent(mdmcli_client_t *client, mdm_cli_event_t ev, int64_t time)
+{
+    if (client->ring) {
+        return ringPush(client->ring, ev, time);
+    } else {
+        return callback(client, ev, time);
     }
 }
 
 static int modemEventCB(const mdm_cli_callback_data_t *event)
 {
-    if (!event) {
+    int ret = 0;
+
+    if (!event || !event->context) {
         return 0;
     }
 
+    /* Arrival time, as System.nanoTime() */
+    int64_t time = monotonicTime();
+    mdmcli_client_t *client = (mdmcli_client_t *)event->context;
+
     switch (event->id) {
     case MDM_DOWN:
-        LOGD("Modem down");
-        callback(MDM_DOWN);
+        LOGD("Modem down (instance %d)", client->instId);
+        notifyEvent(client, MDM_DOWN, time);
+        break;
+    case MDM_ON:
+        LOGD("Modem on (instance %d)", client->instId);
+        notifyEvent(client, MDM_ON, time);
         break;
     case MDM_UP:
-        LOGD("Modem up");
-        callback(MDM_UP);
+        LOGD("Modem up (instance %d)", client->instId);
+        notifyEvent(client, MDM_UP, time);
         break;
     case MDM_OOS:
-        LOGD("Modem out of service");
-        callback(MDM_OOS);
+        LOGD("Modem out of service (instance %d)", client->instId);
+        notifyEvent(client, MDM_OOS, time);
+        break;
+    case MDM_COLD_RESET:
+    case MDM_SHUTDOWN:
+        LOGD("Modem %s (instance %d, %s ack)",
+             (event->id == MDM_COLD_RESET) ? "cold reset" : "shutdown", client->instId,
+             client->autoAck ? "auto" : "manual");
+        if (notifyEvent(client, event->id, time)) {
+            /* A non null value tells the backend that the event will be acknowledged later */
+            ret = client->autoAck ? 0 : 1;
+        } else {
+            /* Java will not acknowledge an event it does not receive */
+            LOGE("Modem %s event lost (instance %d), acknowledged now",
+                 (event->id == MDM_COLD_RESET) ? "cold reset" : "shutdown", client->instId);
+        }
+        break;
+    case MDM_DBG_INFO:
+        if (event->data && (event->data_size >= sizeof(mdm_cli_dbg_info_t))) {
+            dbgInfoCallback(client, (const mdm_cli_dbg_info_t *)event->data, time);
+        }
+        break;
+    case MDM_TLV_SYNCING:
+        LOGD("Modem TLV syncing (instance %d)", client->instId);
+        notifyEvent(client, MDM_TLV_SYNCING, time);
         break;
     default:
         LOGE("Unknown event");
         break;
     }
 
-    return 0;
+    return ret;
 }
 
-static jint jni_acquireModem(JNIEnv *env, jclass clazz)
+static jint jni_acquireModem(JNIEnv *env, jobject thiz, jlong handle)
 {
     (void)env;
-    (void)clazz;
+    (void)thiz;
 
-    return (jint)mdm_cli_acquire(gContext.mMdmHdle);
+    return (jint)mdm_cli_acquire(getMdmHdle(handle));
 }
 
-static jint jni_releaseModem(JNIEnv *env, jclass clazz)
+static jint jni_releaseModem(JNIEnv *env, jobject thiz, jlong handle)
 {
     (void)env;
-    (void)clazz;
+    (void)thiz;
 
-    return (jint)mdm_cli_release(gContext.mMdmHdle);
+    return (jint)mdm_cli_release(getMdmHdle(handle));
 }
 
-static char **stringArrayToCharArray(JNIEnv *env, jobjectArray stringArray, size_t *size)
+/**
+ * Per-thread scratch storage used to marshal debug info strings. Its size is
+ * bounded by the mdm_cli_dbg_info_t limits, so that no heap allocation is needed.
+ */
+typedef struct dbg_data_arena {
+    char data[MDM_CLI_MAX_NB_DATA][MDM_CLI_MAX_LEN_DATA];
+    const char *ptrs[MDM_CLI_MAX_NB_DATA];
+    jchar chars[MDM_CLI_MAX_LEN_DATA];
+} dbg_data_arena_t;
+
+static __thread dbg_data_arena_t gArena;
+
+/**
+ * Copies a Java string as a NULL terminated modified UTF-8 string of at most
+ * MDM_CLI_MAX_LEN_DATA bytes. Longer strings are truncated on a character boundary.
+ */
+static void stringToCharArray(JNIEnv *env, jstring string, char *dst)
 {
-    char **charArray = NULL;
+    jsize len = env->GetStringLength(string);
+    jsize utfLen = env->GetStringUTFLength(string);
+
+    if (utfLen > MDM_CLI_MAX_LEN_DATA - 1) {
+        /* Each character needs at least one byte: no need to look further */
+        jsize max = (len > MDM_CLI_MAX_LEN_DATA - 1) ? MDM_CLI_MAX_LEN_DATA - 1 : len;
+        env->GetStringRegion(string, 0, max, gArena.chars);
+
+        len = 0;
+        utfLen = 0;
+        while (len < max) {
+            jchar c = gArena.chars[len];
+            /* Modified UTF-8: U+0000 is encoded on two bytes, surrogates on three each */
+            jsize size = ((c != 0) && (c < 0x80)) ? 1 : ((c < 0x800) ? 2 : 3);
+            if (utfLen + size > MDM_CLI_MAX_LEN_DATA - 1) {
+                break;
+            }
+            utfLen += size;
+            len++;
+        }
+
+        /* Do not keep the first half of a surrogate pair */
+        if ((len > 0) && (gArena.chars[len - 1] >= 0xD800) && (gArena.chars[len - 1] <= 0xDBFF)) {
+            len--;
+            utfLen -= 3;
+        }
+    }
 
-    if (env && stringArray) {
-        *size = env->GetArrayLength(stringArray);
-        *size = (*size > MDM_CLI_MAX_NB_DATA) ? MDM_CLI_MAX_NB_DATA : *size;
+    env->GetStringUTFRegion(string, 0, len, dst);
+    dst[utfLen] = '\0';
+}
 
-        charArray = (char **)malloc(sizeof(char *) * *size);
+/**
+ * Converts a Java string array into the calling thread's arena. The result is
+ * valid until the next call on the same thread.
+ *
+ * @return the array of strings, NULL if stringArray is NULL
+ */
+static const char **stringArrayToCharArray(JNIEnv *env, jobjectArray stringArray, size_t *size)
+{
+    *size = 0;
 
-        if (charArray) {
-            for (size_t i = 0; i < *size; i++) {
-                jstring string = (jstring)env->GetObjectArrayElement(stringArray, i);
-                const char *charString = env->GetStringUTFChars(string, 0);
+    if (!env || !stringArray) {
+        return NULL;
+    }
 
-                charArray[i] = strdup(charString);
+    *size = env->GetArrayLength(stringArray);
+    *size = (*size > MDM_CLI_MAX_NB_DATA) ? MDM_CLI_MAX_NB_DATA : *size;
 
-                env->ReleaseStringUTFChars(string, charString);
-                env->DeleteLocalRef(string);
-            }
+    for (size_t i = 0; i < *size; i++) {
+        jstring string = (jstring)env->GetObjectArrayElement(stringArray, i);
+
+        if (string) {
+            stringToCharArray(env, string, gArena.data[i]);
+            env->DeleteLocalRef(string);
+        } else {
+            gArena.data[i][0] = '\0';
         }
-    } else {
-        *size = 0;
+        gArena.ptrs[i] = gArena.data[i];
     }
 
-    return charArray;
+    return gArena.ptrs;
 }
 
-static int resetModem(JNIEnv *env, jobjectArray stringArray, mdm_cli_restart_cause_t cause,
+static int resetModem(JNIEnv *env, mdm_cli_hdle_t *hdle, jobjectArray stringArray, mdm_cli_restart_cause_t cause,
                       int apLogsSize, int bpLogsSize, int bpLogsTime)
 {
     size_t size = 0;
-    char **charArray = stringArrayToCharArray(env, stringArray, &size);
+    const char **charArray = stringArrayToCharArray(env, stringArray, &size);
 
     const mdm_cli_dbg_info_t dbg_info = {
         DBG_TYPE_APIMR, apLogsSize, bpLogsSize, bpLogsTime,
-        size, (const char **)charArray
+        size, charArray
     };
 
-    int ret = mdm_cli_restart(gContext.mMdmHdle, cause, &dbg_info);
-
-    if (charArray) {
-        for (size_t i = 0; i < size; i++) {
-            free(charArray[i]);
-        }
-        free(charArray);
-    }
-
-    return ret;
+    return mdm_cli_restart(hdle, cause, &dbg_info);
 }
 
-static int dbgInfo(JNIEnv *env, jobjectArray stringArray, int type, int apLogsSize,
+static int dbgInfo(JNIEnv *env, mdm_cli_hdle_t *hdle, jobjectArray stringArray, int type, int apLogsSize,
                    int bpLogsSize, int bpLogsTime)
 {
     size_t size = 0;
-    char **charArray = stringArrayToCharArray(env, stringArray, &size);
+    const char **charArray = stringArrayToCharArray(env, stringArray, &size);
 
     const mdm_cli_dbg_info_t dbg_info = {
         (mdm_cli_dbg_type_t)type, apLogsSize, bpLogsSize, bpLogsTime,
-        size, (const char **)charArray
+        size, charArray
     };
 
-    int ret = mdm_cli_notify_dbg(gContext.mMdmHdle, &dbg_info);
+    return mdm_cli_notify_dbg(hdle, &dbg_info);
+}
 
-    if (charArray) {
-        for (size_t i = 0; i < size; i++) {
-            free(charArray[i]);
+static jint jni_resetModem(JNIEnv *env, jobject thiz, jlong handle, jobjectArray stringArray,
+                           jint apLogsSize, jint bpLogsSize, jint bpLogsTime)
+{
+    (void)thiz;
+    return (jint)resetModem(env, getMdmHdle(handle), stringArray, RESTART_MDM_ERR, apLogsSize,
+                            bpLogsSize, bpLogsTime);
+}
+
+static jint jni_updateModem(JNIEnv *env, jobject thiz, jlong handle)
+{
+    (void)thiz;
+    return (jint)resetModem(env, getMdmHdle(handle), NULL, RESTART_APPLY_UPDATE,
+                            DBG_DEFAULT_NO_LOG, DBG_DEFAULT_NO_LOG, DBG_DEFAULT_NO_LOG);
+}
+
+static jint jni_notifyDebugInfo(JNIEnv *env, jobject thiz, jlong handle, jobjectArray stringArray,
+                                jint type, jint apLogsSize, jint bpLogsSize, jint bpLogsTime)
+{
+    (void)thiz;
+    return (jint)dbgInfo(env, getMdmHdle(handle), stringArray, type, apLogsSize, bpLogsSize,
+                         bpLogsTime);
+}
+
+/**
+ * Sends a debug info whose entries are stored in a direct buffer (see
+ * DebugInfoEntries.java): each entry is a native endian 16 bits length followed by
+ * the NULL terminated entry. Entries are passed to the backend in place.
+ *
+ * @return 0 if successful, -1 if the entries are malformed or if the call failed
+ */
+static jint jni_notifyDebugInfoBuffer(JNIEnv *env, jobject thiz, jlong handle, jobject buffer,
+                                      jint offset, jint length, jint type, jint apLogsSize,
+                                      jint bpLogsSize, jint bpLogsTime)
+{
+    (void)thiz;
+
+    const char *base = (const char *)env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+
+    if (!base || (offset < 0) || (length < 0) || ((jlong)offset + length > capacity)) {
+        LOGE("Invalid debug info buffer");
+        return -1;
+    }
+    base += offset;
+
+    const char *data[MDM_CLI_MAX_NB_DATA];
+    size_t nb_data = 0;
+    jint pos = 0;
+
+    while ((pos < length) && (nb_data < MDM_CLI_MAX_NB_DATA)) {
+        uint16_t size;
+
+        if (pos + (jint)sizeof(size) > length) {
+            LOGE("Truncated debug info entry");
+            return -1;
         }
-        free(charArray);
+        memcpy(&size, base + pos, sizeof(size));
+        pos += sizeof(size);
+
+        if ((size == 0) || (size > MDM_CLI_MAX_LEN_DATA) || (pos + size > length) ||
+            (base[pos + size - 1] != '\0')) {
+            LOGE("Malformed debug info entry");
+            return -1;
+        }
+        data[nb_data++] = base + pos;
+        pos += size;
     }
 
-    return ret;
+    const mdm_cli_dbg_info_t dbg_info = {
+        (mdm_cli_dbg_type_t)type, apLogsSize, bpLogsSize, bpLogsTime,
+        nb_data, data
+    };
+
+    return (jint)mdm_cli_notify_dbg(getMdmHdle(handle), &dbg_info);
 }
 
-static jint jni_resetModem(JNIEnv *env, jclass clazz, jobjectArray stringArray,
-                           jint apLogsSize, jint bpLogsSize, jint bpLogsTime)
+/* Must be aligned with ModemStatusMonitor.DBG_INFO_PARAMS */
+#define DBG_INFO_PARAMS 4
+
+/**
+ * Sends a batch of debug infos in a single JNI call.
+ *
+ * @return the number of debug infos that could not be sent
+ */
+static jint jni_notifyDebugInfoBatch(JNIEnv *env, jobject thiz, jlong handle,
+                                     jobjectArray causesArray, jintArray paramsArray, jint count)
 {
-    (void)clazz;
-    return (jint)resetModem(env, stringArray, RESTART_MDM_ERR, apLogsSize, bpLogsSize, bpLogsTime);
+    (void)thiz;
+
+    mdm_cli_hdle_t *hdle = getMdmHdle(handle);
+    jint failures = 0;
+
+    if ((env->GetArrayLength(causesArray) < count) ||
+        (env->GetArrayLength(paramsArray) < count * DBG_INFO_PARAMS)) {
+        LOGE("Invalid batch size");
+        return count;
+    }
+
+    for (jint i = 0; i < count; i++) {
+        jint params[DBG_INFO_PARAMS];
+        env->GetIntArrayRegion(paramsArray, i * DBG_INFO_PARAMS, DBG_INFO_PARAMS, params);
+        jobjectArray causes = (jobjectArray)env->GetObjectArrayElement(causesArray, i);
+
+        if (dbgInfo(env, hdle, causes, params[0], params[1], params[2], params[3])) {
+            failures++;
+        }
+
+        if (causes) {
+            env->DeleteLocalRef(causes);
+        }
+    }
+
+    return failures;
 }
 
-static jint jni_updateModem(JNIEnv *env, jclass clazz)
+static jint jni_shutdownModem(JNIEnv *env, jobject thiz, jlong handle)
 {
-    (void)clazz;
-    return (jint)resetModem(env, NULL, RESTART_APPLY_UPDATE, DBG_DEFAULT_NO_LOG,
-                            DBG_DEFAULT_NO_LOG, DBG_DEFAULT_NO_LOG);
+    (void)env;
+    (void)thiz;
+
+    return (jint)mdm_cli_shutdown(getMdmHdle(handle));
 }
 
-static jint jni_notifyDebugInfo(JNIEnv *env, jclass clazz, jobjectArray stringArray, jint type,
-                                jint apLogsSize, jint bpLogsSize, jint bpLogsTime)
+static jint jni_ackColdReset(JNIEnv *env, jobject thiz, jlong handle)
 {
-    (void)clazz;
-    return (jint)dbgInfo(env, stringArray, type, apLogsSize, bpLogsSize, bpLogsTime);
+    (void)env;
+    (void)thiz;
+
+    return (jint)mdm_cli_ack_cold_reset(getMdmHdle(handle));
 }
 
-static jint jni_shutdownModem(JNIEnv *env, jclass clazz)
+static jint jni_ackShutdown(JNIEnv *env, jobject thiz, jlong handle)
 {
     (void)env;
-    (void)clazz;
+    (void)thiz;
 
-    return (jint)mdm_cli_shutdown(gContext.mMdmHdle);
+    return (jint)mdm_cli_ack_shutdown(getMdmHdle(handle));
 }
 
-static void jni_connect(JNIEnv *env, jclass clazz, jstring clientName, jint inst_id)
+static jlong jni_connect(JNIEnv *env, jobject thiz, jstring clientName, jint inst_id,
+                         jboolean autoAck, jboolean useRing)
 {
-    (void)clazz;
-    const char *name = env->GetStringUTFChars(clientName, NULL);
+    mdmcli_client_t *client = (mdmcli_client_t *)calloc(1, sizeof(mdmcli_client_t));
+    if (!client) {
+        LOGE("Failed to allocate client context");
+        return 0;
+    }
+    client->instId = inst_id;
+    client->autoAck = autoAck;
+    client->monitorRef = env->NewGlobalRef(thiz);
+    if (!client->monitorRef) {
+        LOGE("cannot create new Global reference");
+        free(client);
+        return 0;
+    }
 
-    mdm_cli_register_t evts[] = {
-        { MDM_DOWN, modemEventCB, NULL },
-        { MDM_UP, modemEventCB, NULL },
-        { MDM_OOS, modemEventCB, NULL },
-    };
+    if (useRing && !(client->ring = ringCreate())) {
+        LOGE("Failed to allocate event ring");
+        env->DeleteGlobalRef(client->monitorRef);
+        free(client);
+        return 0;
+    }
+
+    const char *name = env->GetStringUTFChars(clientName, NULL);
 
-    while (!(gContext.mMdmHdle = mdm_cli_connect(name, inst_id, ARRAY_SIZE(evts), evts))) {
-        LOGE("Failed to connect to modem management");
-        sleep(1);
+    /* All events are forwarded to Java */
+    mdm_cli_register_t evts[MDM_NUM_EVENTS - MDM_DOWN];
+    for (size_t i = 0; i < ARRAY_SIZE(evts); i++) {
+        evts[i].id = (mdm_cli_event_t)(MDM_DOWN + i);
+        evts[i].callback = modemEventCB;
+        evts[i].context = client;
     }
 
+    /* A single attempt is done here: retries are scheduled by the Java side */
+    client->mdmHdle = mdm_cli_connect(name, inst_id, ARRAY_SIZE(evts), evts);
+
     env->ReleaseStringUTFChars(clientName, name);
-    LOGD("Connected to modem management");
+
+    if (!client->mdmHdle) {
+        LOGE("Failed to connect to modem management (instance %d)", inst_id);
+        env->DeleteGlobalRef(client->monitorRef);
+        if (client->ring) {
+            ringDestroy(client->ring);
+        }
+        free(client);
+        return 0;
+    }
+
+    LOGD("Connected to modem management (instance %d)", inst_id);
+
+    return (jlong)(intptr_t)client;
 }
 
-static void jni_disconnect(JNIEnv *env, jclass clazz)
+static void jni_disconnect(JNIEnv *env, jobject thiz, jlong handle)
+{
+    (void)thiz;
+
+    mdmcli_client_t *client = (mdmcli_client_t *)(intptr_t)handle;
+    if (client) {
+        /* mdm_cli.h: no callback runs once disconnected, the context can be released */
+        mdm_cli_disconnect(client->mdmHdle);
+        env->DeleteGlobalRef(client->monitorRef);
+        client->mdmHdle = NULL;
+        if (client->ring) {
+            /* The dispatcher may still be draining: it frees the client once stopped */
+            ringClose(client->ring);
+        } else {
+            free(client);
+        }
+    }
+}
+
+/* Number of records copied to Java per chunk */
+#define EVENT_DRAIN_CHUNK 32
+
+/**
+ * Waits for events queued in the event ring and copies them in the given arrays.
+ *
+ * @return the number of events copied, -1 once disconnected and all events drained
+ */
+static jint jni_drainEvents(JNIEnv *env, jobject thiz, jlong handle, jintArray ids,
+                            jlongArray times)
+{
+    (void)thiz;
+
+    mdmcli_client_t *client = (mdmcli_client_t *)(intptr_t)handle;
+    if (!client || !client->ring) {
+        return -1;
+    }
+
+    mdmcli_event_record_t records[EVENT_DRAIN_CHUNK];
+    jint max = env->GetArrayLength(ids);
+    if (env->GetArrayLength(times) < max) {
+        max = env->GetArrayLength(times);
+    }
+    if (max > EVENT_DRAIN_CHUNK) {
+        max = EVENT_DRAIN_CHUNK;
+    }
+
+    int count = ringDrain(client->ring, records, max);
+    if (count > 0) {
+        /* One copy per array and per chunk */
+        jint chunkIds[EVENT_DRAIN_CHUNK];
+        jlong chunkTimes[EVENT_DRAIN_CHUNK];
+        for (int i = 0; i < count; i++) {
+            chunkIds[i] = records[i].id;
+            chunkTimes[i] = records[i].time;
+        }
+        env->SetIntArrayRegion(ids, 0, count, chunkIds);
+        env->SetLongArrayRegion(times, 0, count, chunkTimes);
+    }
+
+    return count;
+}
+
+static jlong jni_getDroppedEvents(JNIEnv *env, jobject thiz, jlong handle)
+{
+    (void)env;
+    (void)thiz;
+
+    mdmcli_client_t *client = (mdmcli_client_t *)(intptr_t)handle;
+    if (!client || !client->ring) {
+        return 0;
+    }
+
+    return (jlong)__atomic_load_n(&client->ring->dropped, __ATOMIC_RELAXED);
+}
+
+/**
+ * Frees a disconnected client using the event ring. Called by the Java dispatcher
+ * once jni_drainEvents has reported the end of the ring.
+ */
+static void jni_releaseEventRing(JNIEnv *env, jobject thiz, jlong handle)
 {
     (void)env;
-    (void)clazz;
+    (void)thiz;
 
-    mdm_cli_disconnect(gContext.mMdmHdle);
-    gContext.mMdmHdle = NULL;
+    mdmcli_client_t *client = (mdmcli_client_t *)(intptr_t)handle;
+    if (client && client->ring) {
+        ringDestroy(client->ring);
+        free(client);
+    }
 }
 
 static int registerMethods(JNIEnv *env, jclass clazz)
 {
     static const JNINativeMethod methods[] = {
-        { "jni_connect", "(Ljava/lang/String;I)V", (void *)jni_connect },
-        { "jni_disconnect", "()V", (void *)jni_disconnect },
-        { "jni_resetModem", "([Ljava/lang/String;III)I", (void *)jni_resetModem },
-        { "jni_updateModem", "()I", (void *)jni_updateModem },
-        { "jni_notifyDebugInfo", "([Ljava/lang/String;IIII)I", (void *)jni_notifyDebugInfo },
-        { "jni_acquireModem", "()I", (void *)jni_acquireModem },
-        { "jni_releaseModem", "()I", (void *)jni_releaseModem },
-        { "jni_shutdownModem", "()I", (void *)jni_shutdownModem },
+        { "jni_connect", "(Ljava/lang/String;IZZ)J", (void *)jni_connect },
+        { "jni_disconnect", "(J)V", (void *)jni_disconnect },
+        { "jni_drainEvents", "(J[I[J)I", (void *)jni_drainEvents },
+        { "jni_getDroppedEvents", "(J)J", (void *)jni_getDroppedEvents },
+        { "jni_releaseEventRing", "(J)V", (void *)jni_releaseEventRing },
+        { "jni_resetModem", "(J[Ljava/lang/String;III)I", (void *)jni_resetModem },
+        { "jni_updateModem", "(J)I", (void *)jni_updateModem },
+        { "jni_notifyDebugInfo", "(J[Ljava/lang/String;IIII)I", (void *)jni_notifyDebugInfo },
+        { "jni_notifyDebugInfoBuffer", "(JLjava/nio/ByteBuffer;IIIIII)I",
+          (void *)jni_notifyDebugInfoBuffer },
+        { "jni_notifyDebugInfoBatch", "(J[[Ljava/lang/String;[II)I",
+          (void *)jni_notifyDebugInfoBatch },
+        { "jni_acquireModem", "(J)I", (void *)jni_acquireModem },
+        { "jni_releaseModem", "(J)I", (void *)jni_releaseModem },
+        { "jni_shutdownModem", "(J)I", (void *)jni_shutdownModem },
+        { "jni_ackColdReset", "(J)I", (void *)jni_ackColdReset },
+        { "jni_ackShutdown", "(J)I", (void *)jni_ackShutdown },
     };
 
     return env->RegisterNatives(clazz, methods, ARRAY_SIZE(methods)) != JNI_OK;
@@ -268,6 +835,11 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved)
 
     gContext.mVm = vm;
 
+    if (pthread_key_create(&gContext.envKey, detachCurrentThread)) {
+        LOGE("Failed to create thread key");
+        return -1;
+    }
+
     /* look up the class */
     static const char *const className = "com/intel/internal/telephony/JniModemStatusMonitor";
     clazz = env->FindClass(className);
@@ -282,12 +854,25 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved)
         return -1;
     }
 
-    gContext.callbackRef = env->GetStaticMethodID(gContext.classRef, "callback", "(I)V");
+    gContext.callbackRef = env->GetMethodID(gContext.classRef, "callback", "(IJ)V");
     if (gContext.callbackRef == NULL) {
         LOGE("Failed to get callback reference");
         return -1;
     }
 
+    gContext.dbgInfoCallbackRef = env->GetMethodID(gContext.classRef, "dbgInfoCallback",
+                                                   "(I[Ljava/lang/String;J)V");
+    if (gContext.dbgInfoCallbackRef == NULL) {
+        LOGE("Failed to get debug info callback reference");
+        return -1;
+    }
+
+    gContext.stringClassRef = (jclass)env->NewGlobalRef(env->FindClass("java/lang/String"));
+    if (gContext.stringClassRef == NULL) {
+        LOGE("cannot create new Global reference");
+        return -1;
+    }
+
     if (registerMethods(env, clazz)) {
         LOGE("Failed to register methods");
         return -1;
@@ -308,10 +893,7 @@ void JNI_OnUnload(JavaVM *vm, void *reserved)
         return;
     }
 
-    if (gContext.mMdmHdle) {
-        mdm_cli_disconnect(gContext.mMdmHdle);
-        gContext.mMdmHdle = NULL;
-    }
-
     env->DeleteGlobalRef(gContext.classRef);
+    env->DeleteGlobalRef(gContext.stringClassRef);
+    pthread_key_delete(gContext.envKey);
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+import java.util.Random;
+
+/**
+ * Describes how ModemStatusManager retries a connection to the modem management
+ * system: the delay between two attempts starts at initialDelay and is multiplied
+ * by multiplier after each failure, up to maxDelay. Each delay is shortened by a
+ * random part of at most jitter (0: no jitter, 1: full jitter) to avoid clients
+ * retrying in lockstep. The whole operation fails once timeout is elapsed.
+ */
+public class ConnectRetryPolicy {
+    /* No timeout: retries until connected or cancelled */
+    public final static long NO_TIMEOUT = 0;
+
+    /* Retries quickly first, then every second at most, forever */
+    public final static ConnectRetryPolicy DEFAULT = new ConnectRetryPolicy(10, 1000, 2, 0.2f,
+                                                                            NO_TIMEOUT);
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final float multiplier;
+    private final float jitter;
+    private final long timeout;
+    private final Random random = new Random();
+
+    /**
+     * @param [in] initialDelay Delay before the first retry, in milliseconds
+     * @param [in] maxDelay Upper bound of the delay between two attempts, in milliseconds
+     * @param [in] multiplier Factor applied to the delay after each failed attempt (>= 1)
+     * @param [in] jitter Part of the delay that is randomized, between 0 and 1
+     * @param [in] timeout Maximum duration of the whole operation, in milliseconds.
+     *              NO_TIMEOUT to retry until connected or cancelled
+     *
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public ConnectRetryPolicy(long initialDelay, long maxDelay, float multiplier, float jitter,
+                              long timeout) {
+        if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1 || jitter < 0
+            || jitter > 1 || timeout < 0) {
+            throw new IllegalArgumentException("Invalid connection retry policy");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Computes the delay to wait before the next attempt.
+     *
+     * @param [in] attempt Number of failed attempts so far (starting at 1)
+     *
+     * @return the delay in milliseconds
+     */
+    public long getRetryDelay(int attempt) {
+        double delay = this.initialDelay * Math.pow(this.multiplier, attempt - 1);
+        if (delay > this.maxDelay) {
+            delay = this.maxDelay;
+        }
+
+        return (long)(delay * (1 - this.jitter * this.random.nextFloat()));
+    }
+}
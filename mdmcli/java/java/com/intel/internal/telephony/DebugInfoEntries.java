@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Helper filling a direct ByteBuffer with debug info entries for
+ * ModemStatusManager.notifyDebugInfo(ByteBuffer, ...).
+ *
+ * Each entry is made of its length on 16 bits, in native byte order, followed by
+ * the entry bytes and a 0 terminator (counted in the length). The native layer
+ * passes the entries to the modem management system without copying them.
+ */
+public class DebugInfoEntries {
+    /* Those values must be aligned with mdm_cli_dbg.h */
+    public final static int MAX_NB_DATA = 6;
+    public final static int MAX_LEN_DATA = 512;
+
+    /**
+     * Appends an entry at the buffer position. Data longer than MAX_LEN_DATA - 1 bytes
+     * is truncated.
+     *
+     * @param [in] buffer Buffer to fill
+     * @param [in] data Entry bytes. Must not contain any 0 byte
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void put(ByteBuffer buffer, byte[] data) {
+        int length = Math.min(data.length, MAX_LEN_DATA - 1);
+        ByteOrder order = buffer.order();
+
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putShort((short)(length + 1));
+        buffer.order(order);
+        buffer.put(data, 0, length);
+        buffer.put((byte)0);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+/**
+ * What a queued subscription does with a new event when its queue is full.
+ * See ModemStatusManager.subscribeToEvent(listener, statuses, executor, capacity, policy)
+ */
+public class EventOverflowPolicy {
+    /* The oldest queued event is dropped to make room for the new one */
+    public final static int DROP_OLDEST = 1;
+    /* The event dispatcher waits for room in the queue, delaying the other listeners */
+    public final static int BLOCK = 2;
+    /*
+     * A new DOWN, UP or DEAD event replaces the status events still queued, whatever
+     * the queue occupancy. Other events are handled as DROP_OLDEST
+     */
+    public final static int COALESCE = 3;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+/**
+ * Extends ModemEventListener with the modem events that are not modem status
+ * changes. A listener implementing this interface and subscribed with
+ * ModemStatus.ALL receives those events in addition to the status ones.
+ */
+public interface ExtendedModemEventListener extends ModemEventListener {
+    /**
+     * This method is called when the modem is powered on, before it is up.
+     */
+    public void onModemOn();
+
+    /**
+     * This method is called before a modem cold reset. The reset is delayed until
+     * this method has returned for all listeners, unless auto acknowledgement is
+     * enabled (see ModemStatusManager.setAutoAcknowledge()).
+     */
+    public void onModemColdReset();
+
+    /**
+     * This method is called before a modem shutdown. The shutdown is delayed until
+     * this method has returned for all listeners, unless auto acknowledgement is
+     * enabled (see ModemStatusManager.setAutoAcknowledge()).
+     */
+    public void onModemShutdown();
+
+    /**
+     * This method is called when a debug info is broadcast by the modem management
+     * system or one of its clients.
+     *
+     * @param type Type of debug info
+     * @param data Debug data. Entries can be null
+     */
+    public void onModemDebugInfo(int type, String[] data);
+
+    /**
+     * This method is called when the modem TLV files are being synchronized.
+     */
+    public void onModemTlvSyncing();
+}
@@ -33,11 +33,30 @@ package com.intel.internal.telephony;
 public class ModemClientException extends Exception {
     private static final long serialVersionUID = 7944360020026965614L;
 
+    /* Value of getErrorCode() when the error does not come from the modem management system */
+    public static final int NO_ERROR_CODE = 0;
+
+    private final int errorCode;
+
     public ModemClientException(String message) {
         this(message, null);
     }
 
     public ModemClientException(String message, Throwable innerException) {
         super(message, innerException);
+        this.errorCode = NO_ERROR_CODE;
+    }
+
+    public ModemClientException(String message, int errorCode) {
+        super(message + " (error " + errorCode + ")");
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return the value returned by the modem management system. NO_ERROR_CODE if the
+     *         error was detected by the client library
+     */
+    public int getErrorCode() {
+        return this.errorCode;
     }
 }
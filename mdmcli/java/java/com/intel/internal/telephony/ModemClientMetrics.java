@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and return code statistics of the modem management operations, and
+ * counters of the received events.
+ *
+ * Memory is allocated once: latencies are recorded without lock in log-linear
+ * histograms (8 buckets per power of two, so a percentile is known within 12.5%).
+ * Recording is cheap enough to be left enabled. snapshot() and reset() are not
+ * atomic with respect to concurrent recording: a sample may be missed or counted
+ * in the next snapshot.
+ */
+public final class ModemClientMetrics {
+    /* Operations */
+    public final static int OP_CONNECT = 0;
+    public final static int OP_ACQUIRE_MODEM = 1;
+    public final static int OP_RELEASE_MODEM = 2;
+    public final static int OP_RESET_MODEM = 3;
+    public final static int OP_UPDATE_MODEM = 4;
+    public final static int OP_SHUTDOWN_MODEM = 5;
+    public final static int OP_NOTIFY_DEBUG_INFO = 6;
+    public final static int OP_ACKNOWLEDGE = 7;
+    /* Automatic reconnection: from the failed call to the resynchronisation, see
+     * ModemStatusManager.setAutoReconnect() */
+    public final static int OP_RECOVERY = 8;
+    public final static int NUM_OPERATIONS = 9;
+
+    /* Return codes from MIN_RETURN_CODE to MAX_RETURN_CODE are counted separately */
+    public final static int MIN_RETURN_CODE = -8;
+    public final static int MAX_RETURN_CODE = 8;
+
+    /* Events, indexed by their ModemStatusMonitor.MDM_* value */
+    public final static int NUM_EVENTS = ModemStatusMonitor.MDM_TLV_SYNCING + 1;
+
+    private final static String[] OPERATION_NAMES = {
+        "connect", "acquireModem", "releaseModem", "resetModem", "updateModem",
+        "shutdownModem", "notifyDebugInfo", "acknowledge", "recovery"
+    };
+
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* Latencies above 2^40 ns (about 18 minutes) are counted in the last bucket */
+    private final static int MAX_EXPONENT = 40;
+    private final static int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /* Per operation: count, sum and max of latencies, in nanoseconds */
+    private final static int COUNT = 0;
+    private final static int SUM = 1;
+    private final static int MAX = 2;
+    private final static int NUM_TOTALS = 3;
+    /* Return codes slots: MIN_RETURN_CODE..MAX_RETURN_CODE, then any other code */
+    private final static int NUM_CODES = MAX_RETURN_CODE - MIN_RETURN_CODE + 2;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_OPERATIONS * NUM_BUCKETS);
+    private final AtomicLongArray mTotals = new AtomicLongArray(NUM_OPERATIONS * NUM_TOTALS);
+    private final AtomicLongArray mCodes = new AtomicLongArray(NUM_OPERATIONS * NUM_CODES);
+    private final AtomicLongArray mEvents = new AtomicLongArray(NUM_EVENTS);
+
+    /**
+     * Records one call of an operation.
+     *
+     * @param [in] operation  One of the OP_* values
+     * @param [in] latency    Duration of the call, in nanoseconds
+     * @param [in] returnCode Value returned by the modem management system. 0 on success
+     */
+    public void recordOperation(int operation, long latency, int returnCode) {
+        if (operation < 0 || operation >= NUM_OPERATIONS) {
+            return;
+        }
+        if (latency < 0) {
+            latency = 0;
+        }
+
+        mBuckets.incrementAndGet(operation * NUM_BUCKETS + bucketOf(latency));
+        int totals = operation * NUM_TOTALS;
+        mTotals.incrementAndGet(totals + COUNT);
+        mTotals.addAndGet(totals + SUM, latency);
+        long max = mTotals.get(totals + MAX);
+        while (latency > max && !mTotals.compareAndSet(totals + MAX, max, latency)) {
+            max = mTotals.get(totals + MAX);
+        }
+        mCodes.incrementAndGet(operation * NUM_CODES + codeSlotOf(returnCode));
+    }
+
+    /**
+     * Records the reception of an event.
+     *
+     * @param [in] event One of the ModemStatusMonitor.MDM_* values
+     */
+    public void recordEvent(int event) {
+        if (event >= 0 && event < NUM_EVENTS) {
+            mEvents.incrementAndGet(event);
+        }
+    }
+
+    /**
+     * @return a copy of the current statistics
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(copy(mBuckets), copy(mTotals), copy(mCodes), copy(mEvents));
+    }
+
+    /**
+     * Clears all statistics.
+     */
+    public void reset() {
+        clear(mBuckets);
+        clear(mTotals);
+        clear(mCodes);
+        clear(mEvents);
+    }
+
+    public static String getOperationName(int operation) {
+        return (operation >= 0 && operation < NUM_OPERATIONS) ? OPERATION_NAMES[operation] :
+               "unknown";
+    }
+
+    private static int bucketOf(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent < SUB_BUCKET_BITS) {
+            return (int)value;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /* Highest value counted in a bucket */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static int codeSlotOf(int returnCode) {
+        if (returnCode < MIN_RETURN_CODE || returnCode > MAX_RETURN_CODE) {
+            return NUM_CODES - 1;
+        }
+        return returnCode - MIN_RETURN_CODE;
+    }
+
+    private static long[] copy(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i);
+        }
+        return values;
+    }
+
+    private static void clear(AtomicLongArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            array.set(i, 0);
+        }
+    }
+
+    /**
+     * Statistics at the time of ModemClientMetrics.snapshot(). Latencies are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private final long[] mBuckets;
+        private final long[] mTotals;
+        private final long[] mCodes;
+        private final long[] mEvents;
+
+        private Snapshot(long[] buckets, long[] totals, long[] codes, long[] events) {
+            mBuckets = buckets;
+            mTotals = totals;
+            mCodes = codes;
+            mEvents = events;
+        }
+
+        /**
+         * @return the number of calls of operation
+         */
+        public long getCount(int operation) {
+            return total(operation, COUNT);
+        }
+
+        /**
+         * @return the mean latency of operation. 0 if never called
+         */
+        public long getMeanLatency(int operation) {
+            long count = total(operation, COUNT);
+            return (count == 0) ? 0 : total(operation, SUM) / count;
+        }
+
+        /**
+         * @return the highest latency of operation
+         */
+        public long getMaxLatency(int operation) {
+            return total(operation, MAX);
+        }
+
+        /**
+         * Returns the latency under which a percentage of the calls of operation completed.
+         *
+         * @param [in] operation  One of the OP_* values
+         * @param [in] percentile Between 0 and 100, e.g. 50, 99 or 99.9
+         * @return the latency, rounded up to its histogram bucket. 0 if never called
+         */
+        public long getLatencyPercentile(int operation, double percentile) {
+            long count = getCount(operation);
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            int base = operation * NUM_BUCKETS;
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                seen += mBuckets[base + bucket];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(bucket), getMaxLatency(operation));
+                }
+            }
+            return getMaxLatency(operation);
+        }
+
+        /**
+         * @return the number of calls of operation which returned returnCode. Codes out of
+         *         MIN_RETURN_CODE..MAX_RETURN_CODE are counted together
+         */
+        public long getReturnCodeCount(int operation, int returnCode) {
+            if (operation < 0 || operation >= NUM_OPERATIONS) {
+                return 0;
+            }
+            return mCodes[operation * NUM_CODES + codeSlotOf(returnCode)];
+        }
+
+        /**
+         * @return the number of calls of operation which did not return 0
+         */
+        public long getFailureCount(int operation) {
+            return getCount(operation) - getReturnCodeCount(operation, 0);
+        }
+
+        /**
+         * @return the number of events received, for one of the ModemStatusMonitor.MDM_* values
+         */
+        public long getEventCount(int event) {
+            return (event >= 0 && event < NUM_EVENTS) ? mEvents[event] : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int op = 0; op < NUM_OPERATIONS; op++) {
+                if (getCount(op) == 0) {
+                    continue;
+                }
+                builder.append(getOperationName(op))
+                .append(": count=").append(getCount(op))
+                .append(" failures=").append(getFailureCount(op))
+                .append(" mean=").append(getMeanLatency(op))
+                .append(" p50=").append(getLatencyPercentile(op, 50))
+                .append(" p90=").append(getLatencyPercentile(op, 90))
+                .append(" p99=").append(getLatencyPercentile(op, 99))
+                .append(" p99.9=").append(getLatencyPercentile(op, 99.9))
+                .append(" max=").append(getMaxLatency(op))
+                .append('\n');
+            }
+            builder.append("events:");
+            for (int event = 1; event < NUM_EVENTS; event++) {
+                builder.append(' ').append(event).append('=').append(mEvents[event]);
+            }
+            return builder.toString();
+        }
+
+        private long total(int operation, int index) {
+            if (operation < 0 || operation >= NUM_OPERATIONS) {
+                return 0;
+            }
+            return mTotals[operation * NUM_TOTALS + index];
+        }
+    }
+}
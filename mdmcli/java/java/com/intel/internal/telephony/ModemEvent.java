@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+/**
+ * Event received from the native layer, carried by the MSG_STATUS messages and
+ * queued for the subscriptions with their own executor.
+ * Instances are pooled like android.os.Message, so that no object is allocated per
+ * event: get them with obtain() and give them back with recycle() once handled.
+ */
+final class ModemEvent {
+    private static final int MAX_POOL_SIZE = 50;
+    private static final Object sPoolSync = new Object();
+    private static ModemEvent sPool = null;
+    private static int sPoolSize = 0;
+
+    int event;
+    /* Sequence number of a status event, or debug info type */
+    int arg;
+    Object data;
+    /* Arrival time in the native layer (CLOCK_MONOTONIC), as System.nanoTime() */
+    long time;
+
+    /* Next free event of the pool */
+    private ModemEvent next = null;
+    private boolean inPool = false;
+
+    private ModemEvent() {
+    }
+
+    static ModemEvent obtain(int event, int arg, Object data, long time) {
+        ModemEvent modemEvent = null;
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                modemEvent = sPool;
+                sPool = modemEvent.next;
+                modemEvent.next = null;
+                modemEvent.inPool = false;
+                sPoolSize--;
+            }
+        }
+        if (modemEvent == null) {
+            modemEvent = new ModemEvent();
+        }
+        modemEvent.event = event;
+        modemEvent.arg = arg;
+        modemEvent.data = data;
+        modemEvent.time = time;
+        return modemEvent;
+    }
+
+    /* Returns a copy of orig, to be recycled separately */
+    static ModemEvent obtain(ModemEvent orig) {
+        return obtain(orig.event, orig.arg, orig.data, orig.time);
+    }
+
+    /* Gives this event back to the pool. It must not be used anymore */
+    void recycle() {
+        data = null;
+        synchronized (sPoolSync) {
+            if (!inPool && sPoolSize < MAX_POOL_SIZE) {
+                inPool = true;
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    boolean isStatus() {
+        return event == ModemStatusMonitor.MDM_DOWN || event == ModemStatusMonitor.MDM_UP ||
+               event == ModemStatusMonitor.MDM_OOS;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Subscription of a listener with its own bounded event queue and executor, so that
+ * a slow listener does not delay the others.
+ * Events are delivered in order, one at a time. Returned by
+ * ModemStatusManager.subscribeToEvent(listener, statuses, executor, capacity, policy),
+ * it also reports the dispatching metrics of the listener.
+ */
+public final class ModemEventSubscription {
+    private static final String TAG = "ModemEventSubscription";
+
+    private final ModemEventListener mListener;
+    private final Executor mExecutor;
+    private final ArrayBlockingQueue<ModemEvent> mQueue;
+    private final int mOverflowPolicy;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private volatile boolean mCancelled = false;
+
+    private final AtomicLong mDispatched = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    ModemEventSubscription(ModemEventListener listener, Executor executor, int capacity,
+                           int overflowPolicy) {
+        if (executor == null) {
+            throw new IllegalArgumentException("No executor");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        if (overflowPolicy != EventOverflowPolicy.DROP_OLDEST &&
+            overflowPolicy != EventOverflowPolicy.BLOCK &&
+            overflowPolicy != EventOverflowPolicy.COALESCE) {
+            throw new IllegalArgumentException("Invalid overflow policy: " + overflowPolicy);
+        }
+        mListener = listener;
+        mExecutor = executor;
+        mQueue = new ArrayBlockingQueue<ModemEvent>(capacity);
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    public ModemEventListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return the number of events delivered to the listener
+     */
+    public long getDispatchedEventCount() {
+        return mDispatched.get();
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDroppedEventCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return the number of status events replaced by a newer one (COALESCE policy)
+     */
+    public long getCoalescedEventCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return the mean time, in nanoseconds, between the arrival of an event in the
+     *         native layer and its delivery to the listener. 0 if no event was delivered
+     */
+    public long getAverageDispatchLatency() {
+        long dispatched = mDispatched.get();
+        return (dispatched == 0) ? 0 : mTotalLatency.get() / dispatched;
+    }
+
+    /**
+     * @return the longest time, in nanoseconds, between the arrival of an event in the
+     *         native layer and its delivery to the listener
+     */
+    public long getMaxDispatchLatency() {
+        return mMaxLatency.get();
+    }
+
+    /* Called by the event dispatcher of ModemStatusManager. Queues a copy of event */
+    void offer(ModemEvent modemEvent) {
+        if (mCancelled) {
+            return;
+        }
+
+        ModemEvent event = ModemEvent.obtain(modemEvent);
+
+        if (mOverflowPolicy == EventOverflowPolicy.BLOCK) {
+            try {
+                mQueue.put(event);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                mDropped.incrementAndGet();
+                event.recycle();
+                return;
+            }
+        } else {
+            if (mOverflowPolicy == EventOverflowPolicy.COALESCE && event.isStatus()) {
+                Iterator<ModemEvent> it = mQueue.iterator();
+                while (it.hasNext()) {
+                    ModemEvent queued = it.next();
+                    // not removed if the drain has just taken it
+                    if (queued.isStatus() && mQueue.remove(queued)) {
+                        mCoalesced.incrementAndGet();
+                        queued.recycle();
+                    }
+                }
+            }
+            // COALESCE and DROP_OLDEST: the oldest events make room for the new one
+            while (!mQueue.offer(event)) {
+                ModemEvent dropped = mQueue.poll();
+                if (dropped != null) {
+                    mDropped.incrementAndGet();
+                    dropped.recycle();
+                }
+            }
+        }
+        schedule();
+    }
+
+    /* Stops the delivery. Events still queued are discarded */
+    void cancel() {
+        mCancelled = true;
+        ModemEvent event;
+        while ((event = mQueue.poll()) != null) {
+            event.recycle();
+        }
+    }
+
+    private void schedule() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrainTask);
+            } catch (RejectedExecutionException ex) {
+                mDrainScheduled.set(false);
+                Log.e(TAG, "Executor rejected the event delivery", ex);
+            }
+        }
+    }
+
+    private void drain() {
+        ModemEvent event;
+        while (!mCancelled && (event = mQueue.poll()) != null) {
+            long latency = System.nanoTime() - event.time;
+            long max = mMaxLatency.get();
+            while (latency > max && !mMaxLatency.compareAndSet(max, latency)) {
+                max = mMaxLatency.get();
+            }
+            mTotalLatency.addAndGet(latency);
+            mDispatched.incrementAndGet();
+            ModemStatusManager.dispatch(mListener, event);
+            event.recycle();
+        }
+        mDrainScheduled.set(false);
+        // an event may have been queued after the last poll, while still scheduled
+        if (!mCancelled && !mQueue.isEmpty()) {
+            schedule();
+        }
+    }
+}
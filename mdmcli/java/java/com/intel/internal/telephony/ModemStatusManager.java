@@ -26,8 +26,27 @@
 
 package com.intel.internal.telephony;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.lang.reflect.Constructor;
 
 import android.content.Context;
@@ -36,6 +55,7 @@ import android.content.ContextWrapper;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Handler.Callback;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemProperties;
 import android.util.Log;
@@ -50,53 +70,129 @@ import android.util.Log;
  * - Implement the ModemEventListener interface
  * - Instantiate ModemStatusManager
  * - Pass your implementation of ModemEventListener to ModemStatusManager.subscribeToEvent() method
- * - Also pass the bit mask of events you wish to listen to
+ * - Also pass the modem status(es) you wish to listen to. Several listeners can be subscribed
  * - Call ModemStatusManager.connect() when your app starts
  * - Call ModemStatusManager.disconnect() when your app stops
  */
 public class ModemStatusManager implements Callback {
     private static final String TAG = "ModemStatusManager";
-    private ModemEventListener eventListener = null;
+    /* Copy-on-write snapshot: replaced under the instance lock, read without lock */
+    private volatile Subscription[] subscriptions = new Subscription[0];
 
 
-    /* Those values must be aligned with mdm_cli.h */
-    private final static int MDM_DOWN = 1;
-    private final static int MDM_UP = 3;
-    private final static int MDM_DEAD = 4;
+    private final static int MDM_DOWN = ModemStatusMonitor.MDM_DOWN;
+    private final static int MDM_ON = ModemStatusMonitor.MDM_ON;
+    private final static int MDM_UP = ModemStatusMonitor.MDM_UP;
+    private final static int MDM_DEAD = ModemStatusMonitor.MDM_OOS;
+    private final static int MDM_COLD_RESET = ModemStatusMonitor.MDM_COLD_RESET;
+    private final static int MDM_SHUTDOWN = ModemStatusMonitor.MDM_SHUTDOWN;
+    private final static int MDM_DBG_INFO = ModemStatusMonitor.MDM_DBG_INFO;
+    private final static int MDM_TLV_SYNCING = ModemStatusMonitor.MDM_TLV_SYNCING;
 
     private ModemStatusMonitor modemStatusMonitor = null;
     private Handler statusEventsHandler = null; // Client <- Modem Management
-    private Handler requestHandler = null;      // Client -> Modem Management
+    private ExecutorService mEventExecutor = null;  // Own event dispatcher, if no Looper
     private Integer mInstanceId = Constants.DEFAULT_INSTANCE;
+    private ScheduledExecutorService mScheduler = null; // Runs connection attempts
+    private volatile Thread mSchedulerThread = null; // Thread of mScheduler
+    private Executor mOperationExecutor = null;         // Runs *Future operations
+    private volatile boolean mAutoAck = false;
+
+    /* Automatic reconnection. Disabled if the policy is null */
+    private volatile ConnectRetryPolicy mReconnectPolicy = null;
+    private volatile String mClientName = null;  // Name of the connected client, or null
+    private volatile boolean mModemAcquired = false;
+    private final AtomicBoolean mRecovering = new AtomicBoolean();
+    private volatile CompletableFuture<Void> mReconnectFuture = null;
+    private volatile long mLastRecoveryTime = 0;
+    /* Start of the recovery waiting for a status newer than mRecoverySequence, or 0 */
+    private final AtomicLong mRecoveryStart = new AtomicLong();
+    private volatile int mRecoverySequence = 0;
+    private final AtomicInteger mRecoveryCount = new AtomicInteger();
+    /* Sequence number of the last status delivered to the listeners */
+    private final AtomicInteger mDispatchedSequence = new AtomicInteger();
+
+    /* Debug info batching. Disabled if the batch size is 1 */
+    private volatile int mDebugInfoBatchSize = 1;
+    private volatile long mDebugInfoBatchDelay = 0;
+    private final ConcurrentLinkedQueue<PendingDebugInfo> mDebugInfoQueue =
+        new ConcurrentLinkedQueue<PendingDebugInfo>();
+    private final AtomicInteger mDebugInfoCount = new AtomicInteger();
+    private final AtomicBoolean mDebugInfoFlushRequested = new AtomicBoolean();
+    private final Runnable mDebugInfoFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mDebugInfoFlushRequested.set(false);
+            flushDebugInfo();
+        }
+    };
 
     private static Map<Integer, ModemStatusManager> sInstances = new HashMap<Integer, ModemStatusManager>();
 
-    private ModemStatusManager(Context context, int inst) throws InstantiationException {
+    private ModemStatusManager(Context context, int inst, Executor executor)
+    throws InstantiationException {
         // Context is now useless
 
         this.mInstanceId = inst;
-        this.statusEventsHandler = new Handler(this);
-        this.modemStatusMonitor = new JniModemStatusMonitor(this.statusEventsHandler);
+        if (executor == null && Looper.myLooper() != null) {
+            this.statusEventsHandler = new Handler(this);
+            this.modemStatusMonitor = new JniModemStatusMonitor(this.statusEventsHandler);
+        } else {
+            if (executor == null) {
+                this.mEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-events-" + mInstanceId);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                executor = this.mEventExecutor;
+            }
+            this.modemStatusMonitor = new JniModemStatusMonitor(executor, this);
+        }
         if (this.modemStatusMonitor == null) {
             throw new InstantiationException("Not able to load the modemStatusMonitor");
         }
-        this.requestHandler = new Handler(this.modemStatusMonitor);
     }
 
     /**
      * Returns the instance of ModemStatusManager matching the instanceId
+     * Events are delivered on the Looper of the thread creating the instance. If that
+     * thread has no Looper, they are delivered on a dispatcher thread owned by the instance.
+     *
+     * @param instanceId specify on which Modem Management instance the client is to be connected
+     *                   to connect to first instance of Modem Management instanceId must be equal to 1
+     * @return The instance of ModemStatusManager
+     * @throws InstantiationException no modem management system detected
+     */
+    public static ModemStatusManager getInstance(Context context, int instanceId)
+    throws InstantiationException {
+        return getInstance(context, instanceId, null);
+    }
+
+    /**
+     * Returns the instance of ModemStatusManager matching the instanceId
+     * Events are delivered by executor, without android.os.Handler. This is meant for
+     * services without Looper. executor is only used if the instance is created by
+     * this call.
      *
      * @param instanceId specify on which Modem Management instance the client is to be connected
      *                   to connect to first instance of Modem Management instanceId must be equal to 1
+     * @param executor   Runs the listeners. Must run tasks one at a time, in order, for the
+     *                   events to be received in order. If null, events are delivered on the
+     *                   Looper of the calling thread or, if it has none, on a dispatcher thread
+     *                   owned by the instance
      * @return The instance of ModemStatusManager
      * @throws InstantiationException no modem management system detected
      */
-    public synchronized static ModemStatusManager getInstance(Context context, int instanceId)
+    public synchronized static ModemStatusManager getInstance(Context context, int instanceId,
+                                                              Executor executor)
     throws InstantiationException {
         if (ModemStatusManager.sInstances.containsKey(instanceId)) {
             return ModemStatusManager.sInstances.get(instanceId);
         } else {
-            ModemStatusManager instance = new ModemStatusManager(context, instanceId);
+            ModemStatusManager instance = new ModemStatusManager(context, instanceId, executor);
             ModemStatusManager.sInstances.put(instanceId, instance);
             return instance;
         }
@@ -121,11 +217,8 @@ public class ModemStatusManager implements Callback {
      *                              occurred between the client and the service.
      */
     public void resetModem() throws ModemClientException {
-        if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.resetModem(null, DebugInfoLog.DBG_DEFAULT_LOG_SIZE,
-                                               DebugInfoLog.DBG_DEFAULT_NO_LOG,
-                                               DebugInfoLog.DBG_DEFAULT_NO_LOG);
-        }
+        resetModem(null, DebugInfoLog.DBG_DEFAULT_LOG_SIZE, DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                   DebugInfoLog.DBG_DEFAULT_NO_LOG);
     }
 
     /**
@@ -138,11 +231,8 @@ public class ModemStatusManager implements Callback {
      *                              occurred between the client and the service.
      */
     public void resetModem(String[] causes) throws ModemClientException {
-        if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.resetModem(causes, DebugInfoLog.DBG_DEFAULT_LOG_SIZE,
-                                               DebugInfoLog.DBG_DEFAULT_NO_LOG,
-                                               DebugInfoLog.DBG_DEFAULT_NO_LOG);
-        }
+        resetModem(causes, DebugInfoLog.DBG_DEFAULT_LOG_SIZE, DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                   DebugInfoLog.DBG_DEFAULT_NO_LOG);
     }
 
     /**
@@ -162,7 +252,11 @@ public class ModemStatusManager implements Callback {
     public void resetModem(String[] causes, int apLogsSize, int bpLogsSize, int bpLogsTime)
     throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.resetModem(causes, apLogsSize, bpLogsSize, bpLogsTime);
+            try {
+                this.modemStatusMonitor.resetModem(causes, apLogsSize, bpLogsSize, bpLogsTime);
+            } catch (ModemClientException ex) {
+                throw onCallFailed(ex);
+            }
         }
     }
 
@@ -198,7 +292,11 @@ public class ModemStatusManager implements Callback {
      */
     public void updateModem() throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.updateModem();
+            try {
+                this.modemStatusMonitor.updateModem();
+            } catch (ModemClientException ex) {
+                throw onCallFailed(ex);
+            }
         }
     }
 
@@ -213,14 +311,82 @@ public class ModemStatusManager implements Callback {
      *              -1: default, 0: logs not requested
      * @param [in] bpLogsTime Time of the logs to attach in seconds,
      *              -1: default, 0: logs not requested
+     * If batching is enabled (see setDebugInfoBatching()), the debug info is queued and
+     * this call returns immediately.
+     *
      * @throws ModemClientException if the service returned an error or if a communication error
      *                              occurred between the client and the service.
      */
     public void notifyDebugInfo(String[] causes, int type, int apLogsSize, int bpLogsSize,
                                 int bpLogsTime) throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.notifyDebugInfo(causes, type,
-                                                    apLogsSize, bpLogsSize, bpLogsTime);
+            if (this.mDebugInfoBatchSize > 1) {
+                queueDebugInfo(new PendingDebugInfo(causes, type, apLogsSize, bpLogsSize,
+                                                    bpLogsTime));
+            } else {
+                try {
+                    this.modemStatusMonitor.notifyDebugInfo(causes, type,
+                                                            apLogsSize, bpLogsSize, bpLogsTime);
+                } catch (ModemClientException ex) {
+                    throw onCallFailed(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notifies a debug info to modem management system. The entries are read directly
+     * from the buffer memory: they are neither transcoded nor copied.
+     * This call is never batched: the buffer can be reused once it returns.
+     *
+     * @param [in] entries Direct buffer holding the entries between its position and its
+     *              limit, as written by DebugInfoEntries.put(). Entries beyond
+     *              DebugInfoEntries.MAX_NB_DATA are ignored
+     * @param [in] type Type of event (DebugInfoType)
+     * @param [in] apLogsSize Size of ap logs to be attached in MBytes,
+     *              -1: default, 0: logs not requested
+     * @param [in] bpLogsSize Size of bp logs to be attached in MBytes,
+     *              -1: default, 0: logs not requested
+     * @param [in] bpLogsTime Time of the logs to attach in seconds,
+     *              -1: default, 0: logs not requested
+     * @throws ModemClientException if the entries are malformed, if the service returned an
+     *                              error or if a communication error occurred between the
+     *                              client and the service.
+     */
+    public void notifyDebugInfo(ByteBuffer entries, int type, int apLogsSize, int bpLogsSize,
+                                int bpLogsTime) throws ModemClientException {
+        if (this.modemStatusMonitor != null) {
+            try {
+                this.modemStatusMonitor.notifyDebugInfo(entries, type, apLogsSize, bpLogsSize,
+                                                        bpLogsTime);
+            } catch (ModemClientException ex) {
+                throw onCallFailed(ex);
+            }
+        }
+    }
+
+    /**
+     * Enables the batching of debug infos: notifyDebugInfo() only queues them, and they are
+     * sent by a background thread in a single call to the native layer, as soon as
+     * maxBatchSize of them are queued or maxDelay after the first one was queued.
+     * Errors are only logged in this mode. Batching shortens notifyDebugInfo() calls but
+     * lowers the number of debug infos sent per second when the service answers quickly
+     * (see the notifyDebugInfoBatched benchmark): it is disabled by default.
+     *
+     * @param maxBatchSize Maximum number of debug infos sent at once. 1 to disable batching
+     *                     (default), in which case this call waits for the pending debug
+     *                     infos to be sent
+     * @param maxDelay     Maximum time (in milliseconds) a debug info stays queued
+     */
+    public void setDebugInfoBatching(int maxBatchSize, long maxDelay) {
+        if (maxBatchSize < 1 || maxDelay < 0) {
+            throw new IllegalArgumentException("Invalid debug info batching parameters");
+        }
+        this.mDebugInfoBatchDelay = maxDelay;
+        this.mDebugInfoBatchSize = maxBatchSize;
+        if (maxBatchSize == 1) {
+            // before returning, so that the next debug infos sent directly are not reordered
+            flushDebugInfoAndWait();
         }
     }
 
@@ -254,7 +420,11 @@ public class ModemStatusManager implements Callback {
      */
     public void shutdownModem() throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.shutdownModem();
+            try {
+                this.modemStatusMonitor.shutdownModem();
+            } catch (ModemClientException ex) {
+                throw onCallFailed(ex);
+            }
         }
     }
 
@@ -271,13 +441,20 @@ public class ModemStatusManager implements Callback {
     /**
      * Requests a modem lock to the Modem Status Monitor service.
      * Client must wait for onModemUp event before using it.
+     * With automatic reconnection, the lock is requested again after each reconnection,
+     * until releaseModem() or disconnect() is called.
      *
      * @throws ModemClientException if the service returned an error or if a communication error
      *                              occurred between the client and the service.
      */
     public void acquireModem() throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.acquireModem();
+            this.mModemAcquired = true;
+            try {
+                this.modemStatusMonitor.acquireModem();
+            } catch (ModemClientException ex) {
+                throw onCallFailed(ex);
+            }
         }
     }
 
@@ -301,7 +478,12 @@ public class ModemStatusManager implements Callback {
      */
     public void releaseModem() throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.releaseModem();
+            this.mModemAcquired = false;
+            try {
+                this.modemStatusMonitor.releaseModem();
+            } catch (ModemClientException ex) {
+                throw onCallFailed(ex);
+            }
         }
     }
 
@@ -316,18 +498,207 @@ public class ModemStatusManager implements Callback {
         new AsyncOperationTask(AsyncOperationTask.OPERATION_RELEASE_MODEM, listener).execute();
     }
 
+    /**
+     * Sets the executor running the *Future operations of this instance.
+     * By default, those operations run in order on a thread dedicated to this instance,
+     * shared with the connection attempts.
+     *
+     * @param executor The executor to use, null to restore the default one
+     */
+    public synchronized void setOperationExecutor(Executor executor) {
+        this.mOperationExecutor = executor;
+    }
+
+    /**
+     * Requests a modem lock on the operation executor. Client must wait for onModemUp
+     * event before using the modem.
+     *
+     * @return a future completed once the request is done, or completed exceptionally
+     *         with a ModemClientException
+     */
+    public CompletableFuture<Void> acquireModemFuture() {
+        return submitOperation(AsyncOperationTask.OPERATION_ACQUIRE_MODEM, null);
+    }
+
+    /**
+     * Requests a modem release on the operation executor.
+     *
+     * @return a future completed once the request is done, or completed exceptionally
+     *         with a ModemClientException
+     */
+    public CompletableFuture<Void> releaseModemFuture() {
+        return submitOperation(AsyncOperationTask.OPERATION_RELEASE_MODEM, null);
+    }
+
+    /**
+     * Requests a modem reset on the operation executor.
+     * AP logs are automatically attached in the event report by calling this function
+     *
+     * @param causes Array of String describing the reason. Can be null
+     * @return a future completed once the request is done, or completed exceptionally
+     *         with a ModemClientException
+     */
+    public CompletableFuture<Void> resetModemFuture(String[] causes) {
+        return submitOperation(AsyncOperationTask.OPERATION_RESET_MODEM, causes);
+    }
+
+    /**
+     * Requests a modem update on the operation executor.
+     *
+     * @return a future completed once the request is done, or completed exceptionally
+     *         with a ModemClientException
+     */
+    public CompletableFuture<Void> updateModemFuture() {
+        return submitOperation(AsyncOperationTask.OPERATION_UPDATE_MODEM, null);
+    }
+
+    /**
+     * Requests a modem shutdown on the operation executor.
+     * This function forces a modem shutdown even if client(s) hold the resource
+     *
+     * @return a future completed once the request is done, or completed exceptionally
+     *         with a ModemClientException
+     */
+    public CompletableFuture<Void> shutdownModemFuture() {
+        return submitOperation(AsyncOperationTask.OPERATION_SHUTDOWN_MODEM, null);
+    }
+
     /**
      * Connects to the Modem Status Monitor service. You must call this method
      * to get your implementation of ModemEventListener called.
+     * This call blocks until the connection is established, retrying according to
+     * ConnectRetryPolicy.DEFAULT. The attempts run on the thread completing the futures
+     * of this instance: use connect(String, ConnectRetryPolicy) from their callbacks.
      *
      * @param clientName
      * @throws ModemClientException if the service returned an error or if a communication error
-     *                              occurred between the client and the service.
+     *                              occurred between the client and the service, or if called
+     *                              from the thread running the attempts.
      */
     public void connect(String clientName) throws ModemClientException {
         if (this.modemStatusMonitor != null) {
-            this.modemStatusMonitor.connect(clientName, mInstanceId);
+            if (Thread.currentThread() == this.mSchedulerThread) {
+                // the attempts would wait for this call to return
+                throw new ModemClientException("Blocking connect() called from the"
+                                               + " scheduler thread");
+            }
+            Future<Void> future = connect(clientName, ConnectRetryPolicy.DEFAULT);
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new ModemClientException("Connection interrupted", ex);
+            } catch (ExecutionException ex) {
+                throw new ModemClientException("Connection failed", ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Connects to the Modem Status Monitor service without blocking. Failed attempts
+     * are retried according to the given policy. Cancelling the returned future stops
+     * the retries.
+     *
+     * @param clientName name of the client
+     * @param policy     the retry policy, e.g. ConnectRetryPolicy.DEFAULT
+     * @return a future completed once connected, or completed exceptionally with the
+     *         last ModemClientException if the policy timeout is elapsed
+     */
+    public CompletableFuture<Void> connect(String clientName, ConnectRetryPolicy policy) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (this.modemStatusMonitor != null) {
+            getScheduler().execute(new ConnectTask(clientName, policy, future));
+        } else {
+            future.completeExceptionally(new ModemClientException("No modem status monitor"));
         }
+        return future;
+    }
+
+    /**
+     * Selects how modem cold reset and shutdown events are acknowledged. Must be called
+     * before connect().
+     * By default, those events are acknowledged once all listeners have handled them.
+     * If auto acknowledgement is enabled, the native layer acknowledges them immediately,
+     * without waiting for the listeners.
+     *
+     * @param autoAck True to enable the auto acknowledgement
+     */
+    public void setAutoAcknowledge(boolean autoAck) {
+        this.mAutoAck = autoAck;
+        if (this.modemStatusMonitor != null) {
+            this.modemStatusMonitor.setAutoAcknowledge(autoAck);
+        }
+    }
+
+    /**
+     * Selects how events are delivered by the native layer. Must be called before
+     * connect().
+     * If enabled, events are queued in a native ring and drained by a dedicated
+     * thread, instead of being delivered from the modem management thread. Events
+     * are dropped if listeners cannot keep up: see getDroppedEventCount().
+     *
+     * @param enabled True to use the event ring
+     */
+    public void setEventRingDelivery(boolean enabled) {
+        if (this.modemStatusMonitor != null) {
+            this.modemStatusMonitor.setEventRing(enabled);
+        }
+    }
+
+    /**
+     * Returns the number of events dropped by the event ring since connection.
+     *
+     * @return the number of dropped events. 0 if the event ring is not used
+     */
+    public long getDroppedEventCount() {
+        if (this.modemStatusMonitor != null) {
+            return this.modemStatusMonitor.getDroppedEvents();
+        }
+        return 0;
+    }
+
+    /**
+     * Enables the automatic reconnection. If a call fails on an error returned by the
+     * modem management system while connected, e.g. because its backend restarted, the
+     * client is reconnected in background, retrying according to policy. The failed call
+     * still throws. Once reconnected, the modem is acquired again if it was held, then the
+     * current modem status is delivered to the listeners, as if it was just received. If
+     * none was received since the reconnection, the last status received before it is
+     * delivered.
+     *
+     * @param policy The retry policy of the reconnection, e.g. ConnectRetryPolicy.DEFAULT.
+     *               null to disable the automatic reconnection
+     */
+    public void setAutoReconnect(ConnectRetryPolicy policy) {
+        this.mReconnectPolicy = policy;
+    }
+
+    /**
+     * @return true while an automatic reconnection is in progress
+     */
+    public boolean isReconnecting() {
+        return this.mRecovering.get();
+    }
+
+    /**
+     * Returns the duration of the last automatic reconnection, from the failed call that
+     * started it to the delivery of the current modem status. It bounds the outage seen
+     * by the listeners. The distribution of those durations is reported by the metrics,
+     * as ModemClientMetrics.OP_RECOVERY.
+     *
+     * @return the duration in nanoseconds. 0 if no status was delivered after a
+     *         reconnection yet
+     */
+    public long getLastRecoveryTime() {
+        return this.mLastRecoveryTime;
+    }
+
+    /**
+     * @return the number of successful automatic reconnections
+     */
+    public int getRecoveryCount() {
+        return this.mRecoveryCount.get();
     }
 
     /**
@@ -341,9 +712,12 @@ public class ModemStatusManager implements Callback {
     }
 
     /**
-     * @param status  The modem status to wait for
+     * Waits until the modem reaches a status. Returns immediately if the modem is
+     * already in that status.
+     *
+     * @param status  The modem status to wait for. ModemStatus.ALL for any status
      * @param timeout The maximum amount of time (in milliseconds) to wait
-     * @return True if the status was received; otherwise False
+     * @return True if the modem is in the expected status; otherwise False
      * @throws ModemClientException On any error
      */
     public boolean waitForModemStatus(ModemStatus status, long timeout) throws ModemClientException {
@@ -353,18 +727,73 @@ public class ModemStatusManager implements Callback {
         return false;
     }
 
+    /**
+     * Returns the last modem status received. This call is served from the last event
+     * received: no request is sent to the Modem Status Monitor service.
+     *
+     * @return the modem status. ModemStatus.NONE if unknown or not connected
+     */
+    public ModemStatus getModemStatus() {
+        if (this.modemStatusMonitor != null) {
+            return this.modemStatusMonitor.getModemStatus();
+        }
+        return ModemStatus.NONE;
+    }
+
+    /**
+     * Returns the time at which the current modem status was received.
+     *
+     * @return the System.nanoTime() value of the last transition. 0 if unknown
+     */
+    public long getModemStatusTime() {
+        if (this.modemStatusMonitor != null) {
+            return this.modemStatusMonitor.getModemStatusTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the latency histograms and return code counts of the operations, and
+     * the counts of received events. Call snapshot() on the result to read them.
+     *
+     * @return the metrics of this instance
+     */
+    public ModemClientMetrics getMetrics() {
+        if (this.modemStatusMonitor != null) {
+            return this.modemStatusMonitor.getMetrics();
+        }
+        return null;
+    }
+
     /**
      * Disconnects from the Modem Status Monitor service. After calling this
      * method, the implementation of ModemEventListener will not be notified
      * anymore.
      */
     public void disconnect() {
+        CompletableFuture<Void> reconnect;
+        synchronized (this) {
+            // a recovery started by onCallFailed() is either cancelled here or not started
+            this.mClientName = null;
+            this.mModemAcquired = false;
+            this.mRecoveryStart.set(0);
+            reconnect = this.mReconnectFuture;
+        }
+        if (reconnect != null) {
+            reconnect.cancel(false);
+        }
         try {
             if (this.modemStatusMonitor != null) {
+                flushDebugInfoAndWait();
                 this.modemStatusMonitor.disconnect();
             }
         } finally {
-            this.eventListener = null;
+            synchronized (this) {
+                for (Subscription subscription : this.subscriptions) {
+                    subscription.cancel();
+                }
+                this.subscriptions = new Subscription[0];
+            }
         }
     }
 
@@ -379,52 +808,681 @@ public class ModemStatusManager implements Callback {
 
     /**
      * Registers / subscribes an implementation of ModemEventListener to receive
-     * modem events.
+     * modem events. Several listeners can be subscribed at the same time. Subscribing
+     * an already subscribed listener replaces its mask.
      *
      * @param listener The listener to register.
-     * @param status   The bit mask of the modem statuses to listen to. // DEPRECATED. Remove this
+     * @param status   The modem status to listen to. ModemStatus.ALL for all events.
+     *                 ModemStatus.NONE also subscribes to all events, for compatibility.
      * @return The same instance of ModemStatusManager (this).
      * @throws ModemClientException if the service returned an error or if a communication error
      *                              occurred between the client and the service.
      */
-    public synchronized ModemStatusManager subscribeToEvent(ModemEventListener listener, ModemStatus status)
+    public ModemStatusManager subscribeToEvent(ModemEventListener listener, ModemStatus status)
     throws ModemClientException {
-        this.eventListener = listener;
+        subscribe(listener, toEventMask(status), false);
         return this;
     }
 
+    /**
+     * Registers / subscribes an implementation of ModemEventListener to receive
+     * a set of modem events.
+     *
+     * @param listener The listener to register.
+     * @param statuses The modem statuses to listen to.
+     * @return The same instance of ModemStatusManager (this).
+     * @throws ModemClientException if the service returned an error or if a communication error
+     *                              occurred between the client and the service.
+     */
+    public ModemStatusManager subscribeToEvent(ModemEventListener listener,
+                                               EnumSet<ModemStatus> statuses)
+    throws ModemClientException {
+        return subscribeToEvent(listener, statuses, false);
+    }
+
+    /**
+     * Registers / subscribes an implementation of ModemEventListener to receive
+     * a set of modem events, optionally delivering the latest modem status only.
+     * With latestStateOnly, a DOWN, UP or DEAD event that is already superseded by a
+     * newer one when it is about to be delivered is skipped: the listener only gets
+     * the newer one. Each skipped event is counted, see getCoalescedEventCount().
+     *
+     * @param listener        The listener to register.
+     * @param statuses        The modem statuses to listen to.
+     * @param latestStateOnly True to skip the obsolete status events
+     * @return The same instance of ModemStatusManager (this).
+     * @throws ModemClientException if the service returned an error or if a communication error
+     *                              occurred between the client and the service.
+     */
+    public ModemStatusManager subscribeToEvent(ModemEventListener listener,
+                                               EnumSet<ModemStatus> statuses,
+                                               boolean latestStateOnly)
+    throws ModemClientException {
+        int mask = 0;
+        for (ModemStatus status : statuses) {
+            mask |= toEventMask(status);
+        }
+        subscribe(listener, mask, latestStateOnly);
+        return this;
+    }
+
+    /**
+     * Registers / subscribes an implementation of ModemEventListener with its own event
+     * queue. The events are delivered in order by executor, so that a slow listener does
+     * not delay the other ones. Cold reset and shutdown acknowledgements do not wait for
+     * such listeners.
+     *
+     * @param listener       The listener to register.
+     * @param statuses       The modem statuses to listen to.
+     * @param executor       Delivers the events. May be shared by several subscriptions
+     * @param queueCapacity  Maximum number of events waiting to be delivered
+     * @param overflowPolicy What to do when the queue is full, see EventOverflowPolicy
+     * @return The subscription, reporting the dispatching metrics of the listener.
+     * @throws IllegalArgumentException if executor is null, queueCapacity is lower than 1
+     *                                  or overflowPolicy is unknown
+     */
+    public ModemEventSubscription subscribeToEvent(ModemEventListener listener,
+                                                   EnumSet<ModemStatus> statuses,
+                                                   Executor executor, int queueCapacity,
+                                                   int overflowPolicy) {
+        ModemEventSubscription queue = new ModemEventSubscription(listener, executor,
+                                                                  queueCapacity,
+                                                                  overflowPolicy);
+        int mask = 0;
+        for (ModemStatus status : statuses) {
+            mask |= toEventMask(status);
+        }
+        subscribe(new Subscription(listener, mask, false, queue));
+        return queue;
+    }
+
+    /**
+     * Returns the number of status events skipped for a listener subscribed with
+     * latestStateOnly, because a newer status was already received.
+     *
+     * @param listener The subscribed listener
+     * @return the number of skipped events. 0 if the listener is not subscribed
+     */
+    public long getCoalescedEventCount(ModemEventListener listener) {
+        for (Subscription subscription : this.subscriptions) {
+            if (subscription.listener == listener) {
+                long count = subscription.coalesced.get();
+                if (subscription.queue != null) {
+                    count += subscription.queue.getCoalescedEventCount();
+                }
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Unregisters a listener. It will not be notified anymore.
+     *
+     * @param listener The listener to unregister.
+     * @return The same instance of ModemStatusManager (this).
+     */
+    public synchronized ModemStatusManager unsubscribeFromEvent(ModemEventListener listener) {
+        Subscription[] current = this.subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener == listener) {
+                current[i].cancel();
+                Subscription[] updated = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                this.subscriptions = updated;
+                break;
+            }
+        }
+        return this;
+    }
+
+    private void subscribe(ModemEventListener listener, int mask, boolean latestStateOnly) {
+        subscribe(new Subscription(listener, mask, latestStateOnly, null));
+    }
+
+    private synchronized void subscribe(Subscription subscription) {
+        Subscription[] current = this.subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener == subscription.listener) {
+                current[i].cancel();
+                Subscription[] updated = current.clone();
+                updated[i] = subscription;
+                this.subscriptions = updated;
+                return;
+            }
+        }
+        Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscription;
+        this.subscriptions = updated;
+    }
+
+    private static int toEventMask(ModemStatus status) {
+        switch (status) {
+        case DOWN:
+            return 1 << MDM_DOWN;
+        case UP:
+            return 1 << MDM_UP;
+        case DEAD:
+            return 1 << MDM_DEAD;
+        default:
+            // ALL, and NONE: the status was ignored before masks, NONE subscribers got all events
+            return ~0;
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
      * @see android.os.Handler.Callback#handleMessage(android.os.Message)
      */
     public boolean handleMessage(Message msg) {
-        if ((msg != null) && (this.eventListener != null)) {
-            int state = (int)msg.obj;
-            // let's get the list of listeners interested by our event
-            synchronized (this.eventListener) {
-                switch (state) {
-                case MDM_UP:
-                    this.eventListener.onModemUp();
-                    break;
-                case MDM_DOWN:
-                    this.eventListener.onModemDown();
-                    break;
-                case MDM_DEAD:
-                    this.eventListener.onModemDead();
-                    break;
-                default:
-                    break;
+        if (msg != null) {
+            int state = msg.arg1;
+            int event = 1 << state;
+            boolean status = state == MDM_DOWN || state == MDM_UP || state == MDM_DEAD;
+            if (status && !markDispatched(msg.arg2)) {
+                // already delivered, e.g. by resynchronize()
+                if (msg.obj instanceof ModemEvent) {
+                    ((ModemEvent)msg.obj).recycle();
+                }
+                return true;
+            }
+            /* Status events carry their sequence number: stale if a newer one is received */
+            boolean stale = status && this.modemStatusMonitor != null &&
+                            msg.arg2 != this.modemStatusMonitor.getModemStatusSequence();
+            ModemEvent modemEvent = (msg.obj instanceof ModemEvent) ? (ModemEvent)msg.obj :
+                                    ModemEvent.obtain(state, msg.arg2, msg.obj,
+                                                      System.nanoTime());
+            for (Subscription subscription : this.subscriptions) {
+                if ((subscription.mask & event) != 0) {
+                    if (subscription.queue != null) {
+                        subscription.queue.offer(modemEvent);
+                    } else if (stale && subscription.latestStateOnly) {
+                        subscription.coalesced.incrementAndGet();
+                    } else {
+                        dispatch(subscription.listener, modemEvent);
+                    }
                 }
             }
+            // the queued subscriptions hold their own copies
+            modemEvent.recycle();
+            if (status) {
+                completeRecovery(msg.arg2);
+            }
+
+            if (!this.mAutoAck && (state == MDM_COLD_RESET || state == MDM_SHUTDOWN)) {
+                acknowledge(state);
+            }
         }
         return true;
     }
 
+    /**
+     * Records the delivery of a status event.
+     *
+     * @return false if this status, or a newer one, was already delivered
+     */
+    private boolean markDispatched(int sequence) {
+        int last;
+        do {
+            last = this.mDispatchedSequence.get();
+            if (sequence - last <= 0) {
+                return false;
+            }
+        } while (!this.mDispatchedSequence.compareAndSet(last, sequence));
+        return true;
+    }
+
+    private void acknowledge(int state) {
+        try {
+            if (this.modemStatusMonitor != null) {
+                if (state == MDM_COLD_RESET) {
+                    this.modemStatusMonitor.ackColdReset();
+                } else {
+                    this.modemStatusMonitor.ackShutdown();
+                }
+            }
+        } catch (ModemClientException ex) {
+            Log.e(TAG, "Failed to acknowledge event " + state, ex);
+            onCallFailed(ex);
+        }
+    }
+
+    static void dispatch(ModemEventListener listener, ModemEvent event) {
+        int state = event.event;
+        try {
+            if (listener instanceof TimedModemEventListener) {
+                dispatchTimed((TimedModemEventListener)listener, event);
+                return;
+            }
+            switch (state) {
+            case MDM_UP:
+                listener.onModemUp();
+                break;
+            case MDM_DOWN:
+                listener.onModemDown();
+                break;
+            case MDM_DEAD:
+                listener.onModemDead();
+                break;
+            default:
+                if (listener instanceof ExtendedModemEventListener) {
+                    dispatchExtended((ExtendedModemEventListener)listener, event);
+                }
+                break;
+            }
+        } catch (RuntimeException ex) {
+            // a faulty listener must not prevent the others from being notified
+            Log.e(TAG, "Listener failed to handle event " + state, ex);
+        }
+    }
+
+    private static void dispatchTimed(TimedModemEventListener listener, ModemEvent event) {
+        switch (event.event) {
+        case MDM_UP:
+            listener.onModemUp(event.time);
+            break;
+        case MDM_DOWN:
+            listener.onModemDown(event.time);
+            break;
+        case MDM_DEAD:
+            listener.onModemDead(event.time);
+            break;
+        default:
+            if (listener instanceof ExtendedModemEventListener) {
+                dispatchExtended((ExtendedModemEventListener)listener, event);
+            }
+            break;
+        }
+    }
+
+    private static void dispatchExtended(ExtendedModemEventListener listener, ModemEvent event) {
+        switch (event.event) {
+        case MDM_ON:
+            listener.onModemOn();
+            break;
+        case MDM_COLD_RESET:
+            listener.onModemColdReset();
+            break;
+        case MDM_SHUTDOWN:
+            listener.onModemShutdown();
+            break;
+        case MDM_DBG_INFO:
+            listener.onModemDebugInfo(event.arg, (String[])event.data);
+            break;
+        case MDM_TLV_SYNCING:
+            listener.onModemTlvSyncing();
+            break;
+        default:
+            break;
+        }
+    }
+
     public static int getDefaultInstanceId() {
         return Constants.DEFAULT_INSTANCE;
     }
 
+    private void runOperation(int operation, String[] causes, String clientName)
+    throws ModemClientException {
+        switch (operation) {
+        case AsyncOperationTask.OPERATION_ACQUIRE_MODEM:
+            acquireModem();
+            break;
+        case AsyncOperationTask.OPERATION_RELEASE_MODEM:
+            releaseModem();
+            break;
+        case AsyncOperationTask.OPERATION_RESET_MODEM:
+            resetModem(causes);
+            break;
+        case AsyncOperationTask.OPERATION_UPDATE_MODEM:
+            updateModem();
+            break;
+        case AsyncOperationTask.OPERATION_CONNECT:
+            if (clientName != null) {
+                connect(clientName);
+            }
+            break;
+        case AsyncOperationTask.OPERATION_DISCONNECT:
+            disconnect();
+            break;
+        case AsyncOperationTask.OPERATION_SHUTDOWN_MODEM:
+            shutdownModem();
+            break;
+        }
+    }
+
+    /**
+     * Runs an operation on the operation executor of this instance.
+     *
+     * @return a future completed with the operation result
+     */
+    private CompletableFuture<Void> submitOperation(final int operation, final String[] causes) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            getOperationExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        // cancelled before being started
+                        return;
+                    }
+                    try {
+                        runOperation(operation, causes, null);
+                        future.complete(null);
+                    } catch (Exception ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private void queueDebugInfo(PendingDebugInfo info) {
+        this.mDebugInfoQueue.add(info);
+        int count = this.mDebugInfoCount.incrementAndGet();
+        if (count >= this.mDebugInfoBatchSize) {
+            requestDebugInfoFlush();
+        } else if (count == 1) {
+            getScheduler().schedule(this.mDebugInfoFlushTask, this.mDebugInfoBatchDelay,
+                                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void requestDebugInfoFlush() {
+        if (this.mDebugInfoFlushRequested.compareAndSet(false, true)) {
+            getScheduler().execute(this.mDebugInfoFlushTask);
+        }
+    }
+
+    /**
+     * Sends the queued debug infos on the scheduler and waits for them to be sent. The
+     * batches are only sent by the scheduler, so that they reach the service in order.
+     */
+    private void flushDebugInfoAndWait() {
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            scheduler = this.mScheduler;
+        }
+        if (scheduler == null) {
+            // nothing was ever queued
+            return;
+        }
+        if (Thread.currentThread() == this.mSchedulerThread) {
+            flushDebugInfo();
+            return;
+        }
+        try {
+            scheduler.submit(this.mDebugInfoFlushTask).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while sending the queued debug infos");
+        } catch (ExecutionException ex) {
+            Log.e(TAG, "Failed to send the queued debug infos", ex.getCause());
+        } catch (RejectedExecutionException ex) {
+            Log.e(TAG, "Failed to send the queued debug infos", ex);
+        }
+    }
+
+    /**
+     * Sends all queued debug infos, by batches of at most mDebugInfoBatchSize entries.
+     * Only called on the scheduler.
+     */
+    private void flushDebugInfo() {
+        PendingDebugInfo info;
+        while ((info = this.mDebugInfoQueue.peek()) != null) {
+            int size = Math.max(Math.min(this.mDebugInfoBatchSize, this.mDebugInfoCount.get()), 1);
+            String[][] causes = new String[size][];
+            int[] params = new int[size * ModemStatusMonitor.DBG_INFO_PARAMS];
+            int count = 0;
+            while (count < size && (info = this.mDebugInfoQueue.poll()) != null) {
+                this.mDebugInfoCount.decrementAndGet();
+                causes[count] = info.causes;
+                params[count * ModemStatusMonitor.DBG_INFO_PARAMS] = info.type;
+                params[count * ModemStatusMonitor.DBG_INFO_PARAMS + 1] = info.apLogsSize;
+                params[count * ModemStatusMonitor.DBG_INFO_PARAMS + 2] = info.bpLogsSize;
+                params[count * ModemStatusMonitor.DBG_INFO_PARAMS + 3] = info.bpLogsTime;
+                count++;
+            }
+            try {
+                this.modemStatusMonitor.notifyDebugInfo(causes, params, count);
+            } catch (ModemClientException ex) {
+                Log.e(TAG, "Failed to send debug info batch", ex);
+                onCallFailed(ex);
+            }
+        }
+    }
+
+    /**
+     * Starts an automatic reconnection if enabled, connected, and if the call failed on an
+     * error returned by the modem management system.
+     *
+     * @return ex, to be thrown by the caller
+     */
+    private ModemClientException onCallFailed(ModemClientException ex) {
+        ConnectRetryPolicy policy = this.mReconnectPolicy;
+        if (policy == null || ex.getErrorCode() == ModemClientException.NO_ERROR_CODE) {
+            return ex;
+        }
+        String clientName;
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            // published under the lock of disconnect(), which cancels it
+            clientName = this.mClientName;
+            if (clientName == null || !this.mRecovering.compareAndSet(false, true)) {
+                return ex;
+            }
+            future = new CompletableFuture<Void>();
+            this.mReconnectFuture = future;
+        }
+        startRecovery(clientName, policy, future, System.nanoTime());
+        return ex;
+    }
+
+    /**
+     * Drops the current connection and reconnects on the scheduler, then resynchronizes
+     * the modem lock and the listeners. Cancelled by disconnect(), through future.
+     */
+    private void startRecovery(final String clientName, final ConnectRetryPolicy policy,
+                               final CompletableFuture<Void> future, final long start) {
+        Log.w(TAG, "Call failed, reconnecting client " + clientName);
+        future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error == null) {
+                    resynchronize(start);
+                } else {
+                    mRecoveryStart.set(0);
+                    if (!(error instanceof CancellationException)) {
+                        Log.e(TAG, "Reconnection of client " + clientName + " failed", error);
+                        modemStatusMonitor.getMetrics().recordOperation(
+                            ModemClientMetrics.OP_RECOVERY, System.nanoTime() - start, -1);
+                    }
+                }
+                mRecovering.set(false);
+            }
+        });
+        try {
+            getScheduler().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone() || cancelIfDisconnected(future)) {
+                        return;
+                    }
+                    modemStatusMonitor.disconnect();
+                    // the status delivered after the reconnection ends the recovery
+                    mRecoverySequence = modemStatusMonitor.getModemStatusSequence();
+                    mRecoveryStart.set(start);
+                    if (cancelIfDisconnected(future)) {
+                        return;
+                    }
+                    new ConnectTask(clientName, policy, future).run();
+                }
+            });
+        } catch (RejectedExecutionException rejected) {
+            future.completeExceptionally(rejected);
+        }
+    }
+
+    /* A disconnect() concurrent with the start of the recovery may have missed future */
+    private boolean cancelIfDisconnected(CompletableFuture<Void> future) {
+        if (this.mClientName == null) {
+            future.cancel(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called on the scheduler once reconnected: acquires the modem again if it was held,
+     * then delivers the current modem status, or the last one received before the
+     * reconnection if none is received yet. Does not wait for the status.
+     */
+    private void resynchronize(long start) {
+        if (this.mClientName == null) {
+            // disconnected once the reconnection completed
+            return;
+        }
+        if (this.mModemAcquired) {
+            try {
+                this.modemStatusMonitor.acquireModem();
+            } catch (ModemClientException ex) {
+                Log.e(TAG, "Failed to acquire the modem again", ex);
+            }
+        }
+        // if the status is also queued, handleMessage() skips the copy handled second
+        this.modemStatusMonitor.notifyModemStatus();
+
+        this.mRecoveryCount.incrementAndGet();
+        Log.i(TAG, "Client reconnected in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    /* Records the duration of the recovery once a status of the new connection is delivered */
+    private void completeRecovery(int sequence) {
+        long start = this.mRecoveryStart.get();
+        if (start != 0 && sequence - this.mRecoverySequence > 0
+            && this.mRecoveryStart.compareAndSet(start, 0)) {
+            long duration = System.nanoTime() - start;
+            this.mLastRecoveryTime = duration;
+            this.modemStatusMonitor.getMetrics().recordOperation(ModemClientMetrics.OP_RECOVERY,
+                                                                 duration, 0);
+        }
+    }
+
+    private synchronized Executor getOperationExecutor() {
+        return (this.mOperationExecutor != null) ? this.mOperationExecutor : getScheduler();
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (this.mScheduler == null) {
+            this.mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + "-" + mInstanceId);
+                    thread.setDaemon(true);
+                    mSchedulerThread = thread;
+                    return thread;
+                }
+            });
+        }
+        return this.mScheduler;
+    }
+
+    /**
+     * One connection attempt. Reschedules itself on failure until the future is
+     * completed, cancelled or the policy timeout is elapsed.
+     */
+    private class ConnectTask implements Runnable {
+        private final String clientName;
+        private final ConnectRetryPolicy policy;
+        private final CompletableFuture<Void> future;
+        private final long deadline;
+        private int attempt = 0;
+
+        public ConnectTask(String clientName, ConnectRetryPolicy policy,
+                           CompletableFuture<Void> future) {
+            this.clientName = clientName;
+            this.policy = policy;
+            this.future = future;
+            this.deadline = (policy.getTimeout() == ConnectRetryPolicy.NO_TIMEOUT) ? 0
+                            : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getTimeout());
+        }
+
+        @Override
+        public void run() {
+            if (this.future.isDone()) {
+                // cancelled
+                return;
+            }
+
+            try {
+                ModemStatusManager.this.modemStatusMonitor.connect(this.clientName, mInstanceId);
+                mClientName = this.clientName;
+                if (!this.future.complete(null)) {
+                    // cancelled during the attempt: do not leak the connection
+                    mClientName = null;
+                    ModemStatusManager.this.modemStatusMonitor.disconnect();
+                }
+            } catch (ModemClientException ex) {
+                long delay = this.policy.getRetryDelay(++this.attempt);
+                if (this.deadline != 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(this.deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        this.future.completeExceptionally(ex);
+                        return;
+                    }
+                    delay = Math.min(delay, remaining);
+                }
+                Log.d(TAG, "Connection attempt " + this.attempt + " failed, retry in " + delay + "ms");
+                getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static final class PendingDebugInfo {
+        final String[] causes;
+        final int type;
+        final int apLogsSize;
+        final int bpLogsSize;
+        final int bpLogsTime;
+
+        PendingDebugInfo(String[] causes, int type, int apLogsSize, int bpLogsSize,
+                         int bpLogsTime) {
+            this.causes = causes;
+            this.type = type;
+            this.apLogsSize = apLogsSize;
+            this.bpLogsSize = bpLogsSize;
+            this.bpLogsTime = bpLogsTime;
+        }
+    }
+
+    private static final class Subscription {
+        final ModemEventListener listener;
+        final int mask;
+        final boolean latestStateOnly;
+        final AtomicLong coalesced = new AtomicLong();
+        /* null if events are delivered by the event dispatcher */
+        final ModemEventSubscription queue;
+
+        Subscription(ModemEventListener listener, int mask, boolean latestStateOnly,
+                     ModemEventSubscription queue) {
+            this.listener = listener;
+            this.mask = mask;
+            this.latestStateOnly = latestStateOnly;
+            this.queue = queue;
+        }
+
+        void cancel() {
+            if (this.queue != null) {
+                this.queue.cancel();
+            }
+        }
+    }
+
     private class AsyncOperationTask extends AsyncTask<Object, Void, Exception> {
         private AsyncOperationResultListener listener = null;
         private int requiredOperation = 0;
@@ -455,31 +1513,8 @@ public class ModemStatusManager implements Callback {
             Exception ret = null;
 
             try {
-                switch (this.requiredOperation) {
-                case AsyncOperationTask.OPERATION_ACQUIRE_MODEM:
-                    ModemStatusManager.this.acquireModem();
-                    break;
-                case AsyncOperationTask.OPERATION_RELEASE_MODEM:
-                    ModemStatusManager.this.releaseModem();
-                    break;
-                case AsyncOperationTask.OPERATION_RESET_MODEM:
-                    ModemStatusManager.this.resetModem();
-                    break;
-                case AsyncOperationTask.OPERATION_UPDATE_MODEM:
-                    ModemStatusManager.this.updateModem();
-                    break;
-                case AsyncOperationTask.OPERATION_CONNECT:
-                    if (params != null && params.length > 0) {
-                        ModemStatusManager.this.connect((String)(params[0]));
-                    }
-                    break;
-                case AsyncOperationTask.OPERATION_DISCONNECT:
-                    ModemStatusManager.this.disconnect();
-                    break;
-                case AsyncOperationTask.OPERATION_SHUTDOWN_MODEM:
-                    ModemStatusManager.this.shutdownModem();
-                    break;
-                }
+                String clientName = (params != null && params.length > 0) ? (String)params[0] : null;
+                ModemStatusManager.this.runOperation(this.requiredOperation, this.causes, clientName);
             } catch (Exception ex) {
                 ret = ex;
             }
@@ -26,23 +26,42 @@
 
 package com.intel.internal.telephony;
 
+import java.nio.ByteBuffer;
+
 import android.os.Message;
 import android.os.Handler.Callback;
 
 public interface ModemStatusMonitor extends Callback {
     /* Communication error is detected */
     public static final int MSG_ERROR = 1;
-    /* An event is received */
+    /*
+     * An event is received. arg1 is the event, arg2 its sequence number (status events)
+     * or debug info type (MDM_DBG_INFO), obj the ModemEvent with its data and arrival time
+     */
     public static final int MSG_STATUS = 2;
 
+    /* Modem events. Those values must be aligned with mdm_cli.h */
+    public static final int MDM_DOWN = 1;
+    public static final int MDM_ON = 2;
+    public static final int MDM_UP = 3;
+    public static final int MDM_OOS = 4;
+    public static final int MDM_COLD_RESET = 5;
+    public static final int MDM_SHUTDOWN = 6;
+    public static final int MDM_DBG_INFO = 7;
+    public static final int MDM_TLV_SYNCING = 8;
+
+    /* Number of int parameters per debug info in a batch: type, apLogsSize, bpLogsSize, bpLogsTime */
+    public static final int DBG_INFO_PARAMS = 4;
+
     /**
      * Connects to Modem Management system.
-     * Client provides his name
+     * Client provides his name. A single connection attempt is made: retries
+     * are up to the caller.
      *
      * @param [in] clientName Name of the client
      * @param [in] instanceId Modem instance ID
      *
-     * @throws ModemClientException
+     * @throws ModemClientException if the connection failed
      */
     public void connect(String clientName, int instanceId) throws ModemClientException;
 
@@ -109,6 +128,36 @@ public interface ModemStatusMonitor extends Callback {
     public void notifyDebugInfo(String[] causes, int type, int apLogsSize, int bpLogsSize,
                                 int bpLogsTime) throws ModemClientException;
 
+    /**
+     * Notifies a debug info whose entries are read from a direct buffer, without copy.
+     *
+     * @param [in] entries Direct buffer holding the entries between its position and its
+     *              limit (see DebugInfoEntries)
+     * @param [in] type Type of event (DebugInfoType)
+     * @param [in] apLogsSize Size of ap logs to be attached in MBytes,
+     *              -1: default, 0: logs not requested
+     * @param [in] bpLogsSize Size of bp logs to be attached in MBytes,
+     *              -1: default, 0: logs not requested
+     * @param [in] bpLogsTime Time of the logs to attach in seconds,
+     *              -1: default, 0: logs not requested
+     * @throws ModemClientException if the entries are malformed or the debug info was not sent
+     */
+    public void notifyDebugInfo(ByteBuffer entries, int type, int apLogsSize, int bpLogsSize,
+                                int bpLogsTime) throws ModemClientException;
+
+    /**
+     * Notifies a batch of debug infos to modem management system, in order.
+     *
+     * @param [in] causes Array of causes, one entry per debug info. Entries can be null
+     * @param [in] params DBG_INFO_PARAMS values per debug info: type, apLogsSize, bpLogsSize
+     *              and bpLogsTime
+     * @param [in] count Number of debug infos in the batch
+     *
+     * @throws ModemClientException if at least one debug info was not sent
+     */
+    public void notifyDebugInfo(String[][] causes, int[] params, int count)
+    throws ModemClientException;
+
     /**
      * Shutdowns the modem. This function forces a modem shutdown even if client(s)
      * hold the resource.
@@ -119,17 +168,107 @@ public interface ModemStatusMonitor extends Callback {
     public void shutdownModem() throws ModemClientException;
 
     /**
-     * Waits for a modem status
+     * Selects how modem cold reset and shutdown events are acknowledged. Must be called
+     * before connect().
+     * If enabled, the native layer acknowledges them as soon as they are received.
+     * Otherwise, ackColdReset() / ackShutdown() must be called once they are handled.
+     *
+     * @param [in] autoAck True to enable the auto acknowledgement
+     */
+    public void setAutoAcknowledge(boolean autoAck);
+
+    /**
+     * Selects how events are delivered by the native layer. Must be called before
+     * connect().
+     * If enabled, events are queued in a fixed size native ring and delivered by a
+     * dedicated dispatcher thread. The backend thread never calls into Java, but
+     * events are dropped if the ring is full. MDM_DBG_INFO is always delivered
+     * directly, as it carries data.
+     *
+     * @param [in] enabled True to use the event ring
+     */
+    public void setEventRing(boolean enabled);
+
+    /**
+     * Returns the number of events dropped because the event ring was full.
+     *
+     * @return the number of dropped events. 0 if the event ring is not used
+     */
+    public long getDroppedEvents();
+
+    /**
+     * Acknowledges that the modem cold reset preparation is finished.
+     *
+     * @throws ModemClientException
+     */
+    public void ackColdReset() throws ModemClientException;
+
+    /**
+     * Acknowledges that the modem shutdown preparation is finished.
      *
-     * @param [in] status The modem status to wait for
+     * @throws ModemClientException
+     */
+    public void ackShutdown() throws ModemClientException;
+
+    /**
+     * Waits for a modem status. Returns immediately if the last status received
+     * is the expected one.
+     *
+     * @param [in] status The modem status to wait for. ModemStatus.ALL for any status
      * @param [in] The maximum amount of time (in milliseconds) to wait
      *
-     * @return True if the status was received; otherwise False
+     * @return True if the modem is in the expected status; otherwise False
      *
      * @throws ModemClientException
      */
     public boolean waitForModemStatus(ModemStatus status, long timeout) throws ModemClientException;
 
+    /**
+     * Returns the last modem status received. No request is sent to the modem
+     * management system.
+     *
+     * @return the modem status. ModemStatus.NONE if unknown
+     */
+    public ModemStatus getModemStatus();
+
+    /**
+     * Returns the time at which the current modem status was received.
+     *
+     * @return the System.nanoTime() value of the last transition. 0 if unknown
+     */
+    public long getModemStatusTime();
+
+    /**
+     * Returns the sequence number of the current modem status. It is incremented on
+     * each MDM_DOWN, MDM_UP or MDM_OOS event, and carried in arg2 of the MSG_STATUS
+     * message of that event.
+     *
+     * @return the sequence number of the last transition. 0 if none received yet
+     */
+    public int getModemStatusSequence();
+
+    /**
+     * Delivers the current modem status to the handler, as a MSG_STATUS message
+     * carrying the current sequence number and the time the status was received.
+     * Used to resynchronize the listeners, e.g. after a reconnection. The status may
+     * also be in a message not handled yet: receivers skip the sequence numbers they
+     * already handled.
+     * If no status was received since the connection, the last one received before it
+     * becomes the current status again, as a new transition, and is delivered. The next
+     * event keeps its sequence number if it reports the same status. Nothing is
+     * delivered if no status was ever received.
+     */
+    public void notifyModemStatus();
+
+    /**
+     * Returns the statistics of the operations and events of this monitor.
+     * Operations failing on an error returned by the modem management system throw a
+     * ModemClientException carrying that error code.
+     *
+     * @return the metrics, never null
+     */
+    public ModemClientMetrics getMetrics();
+
     @Override
     public boolean handleMessage(Message msg);
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony;
+
+/**
+ * Extends ModemEventListener with the arrival time of the modem status events.
+ * For a listener implementing this interface, the methods below are called instead
+ * of onModemUp(), onModemDown() and onModemDead().
+ *
+ * Times are taken with CLOCK_MONOTONIC when the event reaches the client library,
+ * the same clock as System.nanoTime(): System.nanoTime() - eventTimeNanos is the
+ * delay before the listener is notified.
+ */
+public interface TimedModemEventListener extends ModemEventListener {
+    /**
+     * This method is called upon a modem up event.
+     *
+     * @param eventTimeNanos Arrival time of the event, in System.nanoTime() base
+     */
+    public void onModemUp(long eventTimeNanos);
+
+    /**
+     * This method is called upon a modem down event.
+     *
+     * @param eventTimeNanos Arrival time of the event, in System.nanoTime() base
+     */
+    public void onModemDown(long eventTimeNanos);
+
+    /**
+     * This method is called upon a modem out of service event.
+     *
+     * @param eventTimeNanos Arrival time of the event, in System.nanoTime() base
+     */
+    public void onModemDead(long eventTimeNanos);
+}
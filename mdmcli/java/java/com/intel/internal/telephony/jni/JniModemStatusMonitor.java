@@ -28,22 +28,56 @@ package com.intel.internal.telephony;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.Handler;
+import android.os.Handler.Callback;
 import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.lang.Object;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class JniModemStatusMonitor implements ModemStatusMonitor {
     private static final String LOG_TAG = "MDMCLI_JNI";
-    private static Handler mHandler = null;
+    private final Handler mHandler;
+    /* Used instead of mHandler when the client has no Looper */
+    private final Executor mExecutor;
+    private final Callback mCallback;
+
+    /* Tasks delivering the events on mExecutor, reused to avoid an allocation per event */
+    private static final int DELIVERY_POOL_SIZE = 32;
+    private final Object mDeliveryPoolSync = new Object();
+    private Delivery mDeliveryPool = null;
+    private int mDeliveryPoolSize = 0;
+
+    /* Native client context returned by jni_connect. 0 when not connected */
+    private volatile long mNativeHandle = 0;
+    /*
+     * Read locked by every JNI call using mNativeHandle and write locked by disconnect(),
+     * so that the native context is never freed while a call is using it
+     */
+    private final ReentrantReadWriteLock mHandleLock = new ReentrantReadWriteLock();
+    private boolean mAutoAck = false;
+    private boolean mUseEventRing = false;
+
+    /* Events drained from the native event ring per JNI call */
+    private static final int EVENT_RING_BATCH = 32;
+
+    /* Last state received from the native layer. Written under mStateLock, read without lock */
+    private volatile State mState = State.UNKNOWN;
+    /* Last known state of a previous connection. Used under mStateLock */
+    private State mLastState = State.UNKNOWN;
+    private final ModemClientMetrics mMetrics = new ModemClientMetrics();
+    private final Lock mStateLock = new ReentrantLock();
+    private final Condition mStateChanged = mStateLock.newCondition();
 
     /* Load mdmcli JNI */
     static {
@@ -51,71 +85,372 @@ public class JniModemStatusMonitor implements ModemStatusMonitor {
     }
 
     /* JNI functions: */
-    private native void jni_connect(String clientName, int intanceId);
-    private native void jni_disconnect();
+    private native long jni_connect(String clientName, int intanceId, boolean autoAck,
+                                    boolean useRing);
+    private native void jni_disconnect(long handle);
 
-    private native int jni_resetModem(String[] causes, int apLogsSize, int bpLogsSize, int bpLogsTimeint);
-    private native int jni_updateModem();
-    private native int jni_notifyDebugInfo(String[] causes, int type, int apLogsSize, int bpLogsSize, int bpLogsTime);
+    private native int jni_drainEvents(long handle, int[] ids, long[] times);
+    private native long jni_getDroppedEvents(long handle);
+    private native void jni_releaseEventRing(long handle);
 
-    private native int jni_shutdownModem();
+    private native int jni_resetModem(long handle, String[] causes, int apLogsSize, int bpLogsSize,
+                                      int bpLogsTime);
+    private native int jni_updateModem(long handle);
+    private native int jni_notifyDebugInfo(long handle, String[] causes, int type, int apLogsSize,
+                                           int bpLogsSize, int bpLogsTime);
 
-    private native int jni_acquireModem();
-    private native int jni_releaseModem();
+    private native int jni_notifyDebugInfoBuffer(long handle, ByteBuffer entries, int offset,
+                                                 int length, int type, int apLogsSize,
+                                                 int bpLogsSize, int bpLogsTime);
+    private native int jni_notifyDebugInfoBatch(long handle, String[][] causes, int[] params,
+                                                int count);
+
+    private native int jni_shutdownModem(long handle);
+    private native int jni_ackColdReset(long handle);
+    private native int jni_ackShutdown(long handle);
+
+    private native int jni_acquireModem(long handle);
+    private native int jni_releaseModem(long handle);
 
     public JniModemStatusMonitor(Handler handler) {
         mHandler = handler;
+        mExecutor = null;
+        mCallback = null;
+    }
+
+    /**
+     * Creates a monitor delivering its messages without Looper: each message is passed
+     * to callback by a task run on executor.
+     *
+     * @param [in] executor Runs the callback. Must run tasks in order to keep events ordered
+     * @param [in] callback Receives the messages
+     */
+    public JniModemStatusMonitor(Executor executor, Callback callback) {
+        mHandler = null;
+        mExecutor = executor;
+        mCallback = callback;
     }
 
     @Override
     public void connect(String clientName, int instanceId) throws ModemClientException {
         Log.d(LOG_TAG, "Connecting client...");
-        jni_connect(clientName, instanceId);
+        long start = System.nanoTime();
+        long handle = jni_connect(clientName, instanceId, mAutoAck, mUseEventRing);
+        mMetrics.recordOperation(ModemClientMetrics.OP_CONNECT, System.nanoTime() - start,
+                                 (handle == 0) ? -1 : 0);
+        if (handle == 0) {
+            throw new ModemClientException("Failed to connect to modem management instance "
+                                           + instanceId);
+        }
+        mNativeHandle = handle;
+        if (mUseEventRing) {
+            startEventDispatcher(handle, "MdmCliEvents-" + instanceId);
+        }
         Log.d(LOG_TAG, "Client connected");
     }
 
     @Override
     public void disconnect() {
         Log.d(LOG_TAG, "Stopping client...");
-        jni_disconnect();
+        long handle;
+        mStateLock.lock();
+        try {
+            /* Concurrent disconnections (e.g. an automatic reconnection) release it once */
+            handle = mNativeHandle;
+            mNativeHandle = 0;
+        } finally {
+            mStateLock.unlock();
+        }
+        if (handle != 0) {
+            /* New calls see no handle: only wait for the calls already using it */
+            mHandleLock.writeLock().lock();
+            try {
+                jni_disconnect(handle);
+            } finally {
+                mHandleLock.writeLock().unlock();
+            }
+        }
+
+        mStateLock.lock();
+        try {
+            if (mState.event != 0) {
+                mLastState = mState;
+            }
+            /* Keep the sequence going, so that messages still queued are seen as stale */
+            mState = new State(0, 0, mState.sequence);
+        } finally {
+            mStateLock.unlock();
+        }
         Log.d(LOG_TAG, "Client stopped");
     }
 
     @Override
     public void acquireModem() throws ModemClientException {
-        jni_acquireModem();
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_ACQUIRE_MODEM, start, jni_acquireModem(handle));
+        } finally {
+            unpinHandle(handle);
+        }
     }
 
     @Override
     public void releaseModem() throws ModemClientException {
-        jni_releaseModem();
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_RELEASE_MODEM, start, jni_releaseModem(handle));
+        } finally {
+            unpinHandle(handle);
+        }
     }
 
     @Override
     public void resetModem(String[] causes, int apLogsSize, int bpLogsSize,
                            int bpLogsTime) throws ModemClientException {
-        jni_resetModem(causes, apLogsSize, bpLogsSize, bpLogsTime);
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_RESET_MODEM, start,
+                  jni_resetModem(handle, causes, apLogsSize, bpLogsSize, bpLogsTime));
+        } finally {
+            unpinHandle(handle);
+        }
     }
 
     @Override
     public void updateModem() throws ModemClientException {
-        jni_updateModem();
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_UPDATE_MODEM, start, jni_updateModem(handle));
+        } finally {
+            unpinHandle(handle);
+        }
     }
 
     @Override
     public void notifyDebugInfo(String[] causes, int type, int apLogsSize, int bpLogsSize,
                                 int bpLogsTime) throws ModemClientException {
-        jni_notifyDebugInfo(causes, type, apLogsSize, bpLogsSize, bpLogsTime);
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_NOTIFY_DEBUG_INFO, start,
+                  jni_notifyDebugInfo(handle, causes, type, apLogsSize, bpLogsSize,
+                                      bpLogsTime));
+        } finally {
+            unpinHandle(handle);
+        }
+    }
+
+    @Override
+    public void notifyDebugInfo(ByteBuffer entries, int type, int apLogsSize, int bpLogsSize,
+                                int bpLogsTime) throws ModemClientException {
+        if (!entries.isDirect()) {
+            throw new ModemClientException("Debug info entries must be in a direct buffer");
+        }
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_NOTIFY_DEBUG_INFO, start,
+                  jni_notifyDebugInfoBuffer(handle, entries, entries.position(),
+                                            entries.remaining(), type, apLogsSize, bpLogsSize,
+                                            bpLogsTime));
+        } finally {
+            unpinHandle(handle);
+        }
+    }
+
+    @Override
+    public void notifyDebugInfo(String[][] causes, int[] params, int count)
+    throws ModemClientException {
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        int failures;
+        try {
+            failures = jni_notifyDebugInfoBatch(handle, causes, params, count);
+        } finally {
+            unpinHandle(handle);
+        }
+        /* One sample per batch: its latency is the one seen by the caller */
+        mMetrics.recordOperation(ModemClientMetrics.OP_NOTIFY_DEBUG_INFO,
+                                 System.nanoTime() - start, (failures != 0) ? -1 : 0);
+        if (failures != 0) {
+            throw new ModemClientException(failures + " debug info(s) of " + count + " not sent");
+        }
     }
 
     @Override
     public void shutdownModem() throws ModemClientException {
-        jni_shutdownModem();
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_SHUTDOWN_MODEM, start, jni_shutdownModem(handle));
+        } finally {
+            unpinHandle(handle);
+        }
     }
 
     @Override
-    public boolean waitForModemStatus(ModemStatus status, long timeout) {
-        return false;
+    public void setAutoAcknowledge(boolean autoAck) {
+        mAutoAck = autoAck;
+    }
+
+    @Override
+    public void setEventRing(boolean enabled) {
+        mUseEventRing = enabled;
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        long handle = pinHandle();
+        try {
+            return jni_getDroppedEvents(handle);
+        } finally {
+            unpinHandle(handle);
+        }
+    }
+
+    @Override
+    public void ackColdReset() throws ModemClientException {
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_ACKNOWLEDGE, start, jni_ackColdReset(handle));
+        } finally {
+            unpinHandle(handle);
+        }
+    }
+
+    @Override
+    public void ackShutdown() throws ModemClientException {
+        long handle = pinHandle();
+        long start = System.nanoTime();
+        try {
+            check(ModemClientMetrics.OP_ACKNOWLEDGE, start, jni_ackShutdown(handle));
+        } finally {
+            unpinHandle(handle);
+        }
+    }
+
+    @Override
+    public boolean waitForModemStatus(ModemStatus status, long timeout) throws ModemClientException {
+        int expected;
+        switch (status) {
+        case NONE:
+            return false;
+        case DOWN:
+            expected = MDM_DOWN;
+            break;
+        case UP:
+            expected = MDM_UP;
+            break;
+        case DEAD:
+            expected = MDM_OOS;
+            break;
+        default:
+            expected = 0;
+            break;
+        }
+
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        mStateLock.lock();
+        try {
+            while ((expected == 0) ? (mState.event == 0) : (mState.event != expected)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = mStateChanged.awaitNanos(nanos);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ModemClientException("Interrupted while waiting for " + status, ex);
+        } finally {
+            mStateLock.unlock();
+        }
+    }
+
+    @Override
+    public ModemStatus getModemStatus() {
+        switch (mState.event) {
+        case MDM_DOWN:
+            return ModemStatus.DOWN;
+        case MDM_UP:
+            return ModemStatus.UP;
+        case MDM_OOS:
+            return ModemStatus.DEAD;
+        default:
+            return ModemStatus.NONE;
+        }
+    }
+
+    @Override
+    public long getModemStatusTime() {
+        return mState.time;
+    }
+
+    @Override
+    public int getModemStatusSequence() {
+        return mState.sequence;
+    }
+
+    @Override
+    public void notifyModemStatus() {
+        State state;
+        mStateLock.lock();
+        try {
+            state = mState;
+            if (state.event == 0 && mLastState.event != 0) {
+                /* Nothing received since the connection: a new transition to the last state */
+                state = new State(mLastState.event, System.nanoTime(), state.sequence + 1, true);
+                mState = state;
+                mStateChanged.signalAll();
+            }
+        } finally {
+            mStateLock.unlock();
+        }
+        if (state.event != 0) {
+            post(state.event, state.sequence, null, state.time);
+        }
+    }
+
+    @Override
+    public ModemClientMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /*
+     * Returns the native handle and keeps it valid until unpinHandle() is called.
+     * Returns 0 if not connected, or if disconnect() is releasing the handle: the call
+     * then fails in the native layer instead of waiting for the disconnection, which may
+     * itself wait for the thread of an event callback issuing this call.
+     */
+    private long pinHandle() {
+        if (!mHandleLock.readLock().tryLock()) {
+            return 0;
+        }
+        long handle = mNativeHandle;
+        if (handle == 0) {
+            mHandleLock.readLock().unlock();
+        }
+        return handle;
+    }
+
+    private void unpinHandle(long handle) {
+        if (handle != 0) {
+            mHandleLock.readLock().unlock();
+        }
+    }
+
+    /* Records a call started at start and throws if it failed */
+    private void check(int operation, long start, int ret) throws ModemClientException {
+        mMetrics.recordOperation(operation, System.nanoTime() - start, ret);
+        if (ret != 0) {
+            throw new ModemClientException(ModemClientMetrics.getOperationName(operation)
+                                           + " failed", ret);
+        }
     }
 
     @Override
@@ -123,9 +458,136 @@ public class JniModemStatusMonitor implements ModemStatusMonitor {
         return false;
     }
 
-    private static void callback(int state) {
+    /* Immutable, so that event, time and sequence are always read consistently */
+    private static final class State {
+        static final State UNKNOWN = new State(0, 0, 0);
+
+        final int event;
+        final long time;
+        final int sequence;
+        /* Restored by notifyModemStatus(), not received yet on this connection */
+        final boolean restored;
+
+        State(int event, long time, int sequence) {
+            this(event, time, sequence, false);
+        }
+
+        State(int event, long time, int sequence, boolean restored) {
+            this.event = event;
+            this.time = time;
+            this.sequence = sequence;
+            this.restored = restored;
+        }
+    }
+
+    /*
+     * Drains the native event ring until disconnection. The ring and the native
+     * client are released by this thread, once no event can be queued anymore.
+     */
+    private void startEventDispatcher(final long handle, String name) {
+        Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int[] ids = new int[EVENT_RING_BATCH];
+                long[] times = new long[EVENT_RING_BATCH];
+                int count;
+                while ((count = jni_drainEvents(handle, ids, times)) >= 0) {
+                    for (int i = 0; i < count; i++) {
+                        onEvent(ids[i], times[i]);
+                    }
+                }
+                jni_releaseEventRing(handle);
+            }
+        }, name);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /*
+     * Called by the native layer on the thread of the modem management backend.
+     * time is the CLOCK_MONOTONIC arrival time of the event, as System.nanoTime()
+     */
+    private void callback(int state, long time) {
+        onEvent(state, time);
+    }
+
+    private void onEvent(int state, long time) {
+        mMetrics.recordEvent(state);
+        int sequence = 0;
+        mStateLock.lock();
+        try {
+            if (state == MDM_DOWN || state == MDM_UP || state == MDM_OOS) {
+                /* Confirms a restored state: same sequence, so that it is delivered once */
+                sequence = (mState.restored && mState.event == state) ? mState.sequence
+                           : mState.sequence + 1;
+                mState = new State(state, time, sequence);
+            }
+            mStateChanged.signalAll();
+        } finally {
+            mStateLock.unlock();
+        }
+
+        post(state, sequence, null, time);
+    }
+
+    /* Called by the native layer upon MDM_DBG_INFO */
+    private void dbgInfoCallback(int type, String[] data, long time) {
+        mMetrics.recordEvent(MDM_DBG_INFO);
+        post(MDM_DBG_INFO, type, data, time);
+    }
+
+    /*
+     * The ModemEvent is pooled: it is recycled by the callback (see
+     * ModemStatusManager.handleMessage), and garbage collected otherwise
+     */
+    private void post(int event, int arg, Object data, long time) {
+        ModemEvent modemEvent = ModemEvent.obtain(event, arg, data, time);
         if (mHandler != null) {
-            mHandler.obtainMessage(ModemStatusMonitor.MSG_STATUS, state).sendToTarget();
+            mHandler.obtainMessage(ModemStatusMonitor.MSG_STATUS, event, arg,
+                                   modemEvent).sendToTarget();
+        } else if (mExecutor != null) {
+            mExecutor.execute(obtainDelivery(modemEvent));
+        }
+    }
+
+    private Delivery obtainDelivery(ModemEvent modemEvent) {
+        Delivery delivery;
+        synchronized (mDeliveryPoolSync) {
+            delivery = mDeliveryPool;
+            if (delivery != null) {
+                mDeliveryPool = delivery.next;
+                mDeliveryPoolSize--;
+            }
+        }
+        if (delivery == null) {
+            delivery = new Delivery();
+        }
+        delivery.event = modemEvent;
+        return delivery;
+    }
+
+    /* Hands a message to mCallback on the executor. Reused once run */
+    private final class Delivery implements Runnable {
+        ModemEvent event = null;
+        Delivery next = null;
+
+        @Override
+        public void run() {
+            Message msg = Message.obtain();
+            msg.what = ModemStatusMonitor.MSG_STATUS;
+            msg.arg1 = event.event;
+            msg.arg2 = event.arg;
+            msg.obj = event;
+            event = null;
+            synchronized (mDeliveryPoolSync) {
+                if (mDeliveryPoolSize < DELIVERY_POOL_SIZE) {
+                    next = mDeliveryPool;
+                    mDeliveryPool = this;
+                    mDeliveryPoolSize++;
+                }
+            }
+            mCallback.handleMessage(msg);
+            msg.recycle();
         }
     }
 }
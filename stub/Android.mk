@@ -13,3 +13,17 @@ LOCAL_CFLAGS := -Wall -Wvla -Wextra -Werror -std=gnu99 -Wunused-function
 LOCAL_SHARED_LIBRARIES := libc libcutils liblog
 
 include $(BUILD_SHARED_LIBRARY)
+
+# Host build, used by the benchmarks (test/benchmark/c)
+include $(CLEAR_VARS)
+LOCAL_MODULE := libmdmcli_stub
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../mdmcli/c/inc/
+
+LOCAL_SRC_FILES := mdm_cli_stub.c
+LOCAL_CFLAGS := -Wall -Wvla -Wextra -Werror -std=gnu99 -Wunused-function \
+    -DSTDIO_LOGS -DSTDIO_NO_DEBUG_LOGS
+LOCAL_LDLIBS := -lpthread
+
+include $(BUILD_HOST_SHARED_LIBRARY)
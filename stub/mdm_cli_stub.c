@@ -23,16 +23,69 @@
  * limitations under the License.
  */
 
+/**
+ * Stub of the modem management backend.
+ *
+ * By default, each client is notified once that the modem is out of service and
+ * every command succeeds. A scenario can be loaded instead, from the file set in the
+ * MDM_CLI_STUB_SCENARIO environment variable (or the vendor.mdmcli.stub.scenario
+ * property on Android). It is a text file with one directive per line:
+ *
+ *   instance <id>              following directives apply to instance <id> only.
+ *                              Directives before the first one apply to instances
+ *                              without their own section
+ *   event <name> [count [interval_us]]
+ *                              sends an event to all clients of the instance, count
+ *                              times (default 1), every interval_us (default 0).
+ *                              interval_us is only the gap between the events of the
+ *                              directive: use sleep to delay a single event
+ *   sleep <us>                 pauses the scenario
+ *   repeat <count>             runs the event sequence count times, 0 for as long as
+ *                              clients are connected (default 1). 0 is rejected if the
+ *                              sequence has no delay, as it would spin a CPU
+ *   ack_timeout <ms>           after COLD_RESET and SHUTDOWN, waits for the clients
+ *                              to acknowledge, up to this delay (default 1000)
+ *   latency <api> <us>         delays each call of <api>
+ *   return <api> <code>        value returned by <api> (default 0)
+ *
+ * <name> is one of DOWN, ON, UP, OOS, COLD_RESET, SHUTDOWN, DBG_INFO, TLV_SYNCING.
+ * <api> is one of connect, disconnect, acquire, release, restart, shutdown,
+ * nvm_bckup, ack_cold_reset, ack_shutdown, notify_dbg.
+ * Lines starting with '#' are ignored.
+ *
+ * Each instance runs its scenario in its own thread, started when its first client
+ * connects. A client connecting during a run receives the events left in it, or a
+ * new run if it connects after the last event. Except for DBG_INFO, scenario events
+ * carry their emission time: data points to a stub_event_t, starting with a struct
+ * timespec read from CLOCK_MONOTONIC, followed by the sequence number of the event in
+ * its instance. DBG_INFO events carry "mdm_cli_stub" and "<sequence> <time in ns>".
+ * Test tools can compare the events received with mdm_cli_stub_get_emitted().
+ */
+
 #include "mdm_cli.h"
 
 #if defined(STDIO_LOGS)
 #define ALOGE printf
+#if defined(STDIO_NO_DEBUG_LOGS)
+/* Arguments are still compiled, so that variables used by logs only are not unused */
+#define ALOGD(...) do { if (0) printf(__VA_ARGS__); } while (0)
+#else
 #define ALOGD printf
+#endif
 #else
 #define LOG_TAG "MDMCLISTUB"
 #include <utils/Log.h>
 #endif
 
+#if defined(__ANDROID__)
+#include <cutils/properties.h>
+#endif
+
+#include <errno.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <time.h>
 #include <unistd.h>
 #include <stdlib.h>
 #include <stdio.h>
@@ -48,11 +101,241 @@
         } \
 } while (0)
 
-typedef struct mdm_cli_ctx {
+#define SCENARIO_ENV "MDM_CLI_STUB_SCENARIO"
+#define SCENARIO_PROP "vendor.mdmcli.stub.scenario"
+
+/* Instance 0 holds the directives shared by the instances without their own section */
+#define MAX_INSTANCES 8
+#define MAX_STEPS 64
+#define DEFAULT_ACK_TIMEOUT_MS 1000
+
+typedef enum stub_api {
+    API_CONNECT,
+    API_DISCONNECT,
+    API_ACQUIRE,
+    API_RELEASE,
+    API_RESTART,
+    API_SHUTDOWN,
+    API_NVM_BCKUP,
+    API_ACK_COLD_RESET,
+    API_ACK_SHUTDOWN,
+    API_NOTIFY_DBG,
+    API_NUM,
+} stub_api_t;
+
+static const char *const g_api_names[API_NUM] = {
+    "connect", "disconnect", "acquire", "release", "restart", "shutdown", "nvm_bckup",
+    "ack_cold_reset", "ack_shutdown", "notify_dbg"
+};
+
+static const char *const g_event_names[MDM_NUM_EVENTS] = {
+    NULL, "DOWN", "ON", "UP", "OOS", "COLD_RESET", "SHUTDOWN", "DBG_INFO", "TLV_SYNCING"
+};
+
+typedef struct scenario_step {
+    mdm_cli_event_t event; /* MDM_NUM_EVENTS for a sleep */
+    int count;
+    long interval_us;
+} scenario_step_t;
+
+typedef struct scenario {
+    bool configured;
+    scenario_step_t steps[MAX_STEPS];
+    int nb_steps;
+    int repeat;
+    int ack_timeout_ms;
+    long latency_us[API_NUM];
+    int ret[API_NUM];
+} scenario_t;
+
+typedef struct mdm_cli_ctx mdm_cli_ctx_t;
+
+struct mdm_cli_ctx {
     mdm_cli_register_t evts[MDM_NUM_EVENTS];
     int nb_events;
     char *client_name;
-} mdm_cli_ctx_t;
+    int inst_id;
+    const scenario_t *scenario;
+    mdm_cli_ctx_t *next;
+    pthread_t oos_thread;   /* notify_oos, joined by mdm_cli_disconnect */
+    bool notifying;
+};
+
+/* Data of the scenario events. Starts with the emission time, as documented above */
+typedef struct stub_event {
+    struct timespec time;
+    uint64_t seq;
+} stub_event_t;
+
+typedef struct stub_instance {
+    pthread_mutex_t lock;   /* protects the fields below, up to emitted */
+    mdm_cli_ctx_t *clients;
+    bool running;
+    bool late_clients;      /* clients joined the run since its last event */
+    uint64_t seq;           /* sequence number of the last event sent */
+    uint64_t emitted[MDM_NUM_EVENTS];
+    pthread_mutex_t ack_lock;
+    pthread_cond_t ack_cond;
+    int pending_acks;
+} stub_instance_t;
+
+static scenario_t g_scenarios[MAX_INSTANCES + 1];
+static bool g_scenario_loaded = false;
+static pthread_once_t g_scenario_once = PTHREAD_ONCE_INIT;
+static stub_instance_t g_instances[MAX_INSTANCES + 1];
+
+static int find_name(const char *name, const char *const names[], int nb)
+{
+    if (!strncmp(name, "MDM_", 4))
+        name += 4;
+
+    for (int i = 0; i < nb; i++) {
+        if (names[i] && !strcmp(name, names[i]))
+            return i;
+    }
+    return -1;
+}
+
+/**
+ * Parses one scenario directive
+ *
+ * @return 0 if successful
+ */
+static int parse_line(char *line, scenario_t **current)
+{
+    char *saveptr = NULL;
+    char *cmd = strtok_r(line, " \t\r\n", &saveptr);
+    char *arg1 = strtok_r(NULL, " \t\r\n", &saveptr);
+    char *arg2 = strtok_r(NULL, " \t\r\n", &saveptr);
+    char *arg3 = strtok_r(NULL, " \t\r\n", &saveptr);
+    scenario_t *sc = *current;
+
+    if (!cmd || (cmd[0] == '#'))
+        return 0;
+    if (!arg1)
+        return -1;
+
+    if (!strcmp(cmd, "instance")) {
+        int id = atoi(arg1);
+        if ((id < 1) || (id > MAX_INSTANCES))
+            return -1;
+        *current = &g_scenarios[id];
+        (*current)->configured = true;
+    } else if (!strcmp(cmd, "event") || !strcmp(cmd, "sleep")) {
+        if (sc->nb_steps >= MAX_STEPS)
+            return -1;
+        scenario_step_t *step = &sc->steps[sc->nb_steps];
+        if (!strcmp(cmd, "sleep")) {
+            step->event = MDM_NUM_EVENTS;
+            step->count = 1;
+            step->interval_us = atol(arg1);
+        } else {
+            int ev = find_name(arg1, g_event_names, MDM_NUM_EVENTS);
+            if (ev < 0)
+                return -1;
+            step->event = (mdm_cli_event_t)ev;
+            step->count = arg2 ? atoi(arg2) : 1;
+            step->interval_us = arg3 ? atol(arg3) : 0;
+            if (step->count < 1)
+                return -1;
+            if ((step->count == 1) && (step->interval_us > 0))
+                ALOGE("interval of a single %s event ignored, use sleep\n", arg1);
+        }
+        sc->nb_steps++;
+    } else if (!strcmp(cmd, "repeat")) {
+        sc->repeat = atoi(arg1);
+    } else if (!strcmp(cmd, "ack_timeout")) {
+        sc->ack_timeout_ms = atoi(arg1);
+    } else if (!strcmp(cmd, "latency") || !strcmp(cmd, "return")) {
+        int api = find_name(arg1, g_api_names, API_NUM);
+        if ((api < 0) || !arg2)
+            return -1;
+        if (!strcmp(cmd, "latency"))
+            sc->latency_us[api] = atol(arg2);
+        else
+            sc->ret[api] = atoi(arg2);
+    } else {
+        return -1;
+    }
+
+    return 0;
+}
+
+static void load_scenario(void)
+{
+    const char *path = getenv(SCENARIO_ENV);
+
+#if defined(__ANDROID__)
+    char prop[PROPERTY_VALUE_MAX];
+    if (!path && (property_get(SCENARIO_PROP, prop, "") > 0))
+        path = prop;
+#endif
+
+    for (int i = 0; i <= MAX_INSTANCES; i++) {
+        g_scenarios[i].repeat = 1;
+        g_scenarios[i].ack_timeout_ms = DEFAULT_ACK_TIMEOUT_MS;
+        pthread_mutex_init(&g_instances[i].lock, NULL);
+        pthread_mutex_init(&g_instances[i].ack_lock, NULL);
+        pthread_cond_init(&g_instances[i].ack_cond, NULL);
+    }
+
+    if (!path || !path[0])
+        return;
+
+    FILE *fp = fopen(path, "r");
+    if (!fp) {
+        ALOGE("cannot open scenario %s\n", path);
+        return;
+    }
+
+    char line[256];
+    int nb = 0;
+    scenario_t *current = &g_scenarios[0];
+    current->configured = true;
+    while (fgets(line, sizeof(line), fp)) {
+        nb++;
+        if (parse_line(line, &current))
+            ALOGE("scenario %s: invalid line %d ignored\n", path, nb);
+    }
+    fclose(fp);
+
+    for (int i = 0; i <= MAX_INSTANCES; i++) {
+        scenario_t *sc = &g_scenarios[i];
+        long delay_us = 0;
+        for (int j = 0; j < sc->nb_steps; j++)
+            delay_us += sc->steps[j].interval_us *
+                        ((sc->steps[j].event == MDM_NUM_EVENTS) ? 1 : sc->steps[j].count - 1);
+        if ((sc->repeat == 0) && (sc->nb_steps > 0) && (delay_us <= 0)) {
+            ALOGE("scenario %s: endless repeat without delay, instance %d runs once\n", path, i);
+            sc->repeat = 1;
+        }
+    }
+
+    g_scenario_loaded = true;
+    ALOGD("scenario %s loaded\n", path);
+}
+
+static const scenario_t *get_scenario(int inst_id)
+{
+    if ((inst_id >= 1) && (inst_id <= MAX_INSTANCES) && g_scenarios[inst_id].configured)
+        return &g_scenarios[inst_id];
+    return &g_scenarios[0];
+}
+
+static stub_instance_t *get_instance(int inst_id)
+{
+    return &g_instances[((inst_id >= 1) && (inst_id <= MAX_INSTANCES)) ? inst_id : 0];
+}
+
+/**
+ * Applies the latency and return code configured for an API
+ */
+static int stub_call(const mdm_cli_ctx_t *ctx, stub_api_t api)
+{
+    if (ctx->scenario->latency_us[api] > 0)
+        usleep(ctx->scenario->latency_us[api]);
+    return ctx->scenario->ret[api];
+}
 
 static void *notify_oos(void *data)
 {
@@ -67,22 +350,210 @@ static void *notify_oos(void *data)
     return NULL;
 }
 
+/**
+ * Sends an event to all clients of the instance registered to it
+ *
+ * @return the number of clients which will acknowledge the event
+ */
+static int broadcast(stub_instance_t *inst, mdm_cli_event_t ev)
+{
+    char dbg_stamp[48];
+    const char *dbg_data[] = { "mdm_cli_stub", dbg_stamp };
+    mdm_cli_dbg_info_t dbg_info = { DBG_TYPE_INFO, DBG_DEFAULT_NO_LOG, DBG_DEFAULT_NO_LOG,
+                                    DBG_DEFAULT_NO_LOG, 2, dbg_data };
+    stub_event_t data;
+    int acks = 0;
+
+    clock_gettime(CLOCK_MONOTONIC, &data.time);
+
+    pthread_mutex_lock(&inst->lock);
+    inst->late_clients = false;
+    data.seq = ++inst->seq;
+    inst->emitted[ev]++;
+    if (ev == MDM_DBG_INFO)
+        snprintf(dbg_stamp, sizeof(dbg_stamp), "%llu %llu", (unsigned long long)data.seq,
+                 (unsigned long long)data.time.tv_sec * 1000000000ULL + data.time.tv_nsec);
+    for (mdm_cli_ctx_t *ctx = inst->clients; ctx; ctx = ctx->next) {
+        if (!ctx->evts[ev].callback)
+            continue;
+
+        mdm_cli_callback_data_t cb_data = { ev, ctx->evts[ev].context, sizeof(data), &data };
+        if (ev == MDM_DBG_INFO) {
+            cb_data.data_size = sizeof(dbg_info);
+            cb_data.data = &dbg_info;
+        }
+        if (ctx->evts[ev].callback(&cb_data) &&
+            ((ev == MDM_COLD_RESET) || (ev == MDM_SHUTDOWN)))
+            acks++;
+    }
+    pthread_mutex_unlock(&inst->lock);
+
+    return acks;
+}
+
+static void wait_acks(stub_instance_t *inst, int ack_timeout_ms)
+{
+    struct timespec deadline;
+
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_sec += ack_timeout_ms / 1000;
+    deadline.tv_nsec += (ack_timeout_ms % 1000) * 1000000L;
+    if (deadline.tv_nsec >= 1000000000L) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000L;
+    }
+
+    pthread_mutex_lock(&inst->ack_lock);
+    while (inst->pending_acks > 0) {
+        if (pthread_cond_timedwait(&inst->ack_cond, &inst->ack_lock, &deadline) == ETIMEDOUT) {
+            ALOGE("%d acknowledgement(s) missing\n", inst->pending_acks);
+            break;
+        }
+    }
+    inst->pending_acks = 0;
+    pthread_mutex_unlock(&inst->ack_lock);
+}
+
+static void sleep_until(struct timespec *next, long delay_us)
+{
+    next->tv_sec += delay_us / 1000000;
+    next->tv_nsec += (delay_us % 1000000) * 1000;
+    if (next->tv_nsec >= 1000000000L) {
+        next->tv_sec++;
+        next->tv_nsec -= 1000000000L;
+    }
+    /* Absolute deadlines, so that the event rate does not drift */
+    while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, next, NULL) == EINTR) {
+    }
+}
+
+/**
+ * Tells whether the scenario runs another loop. If not, it is marked as stopped in the
+ * same critical section, so that the next client to connect starts a new run.
+ *
+ * @param [in,out] loop index of the next loop, reset if the run starts again for
+ *                 clients connected after its last event
+ */
+static bool next_loop(stub_instance_t *inst, const scenario_t *sc, int *loop)
+{
+    pthread_mutex_lock(&inst->lock);
+    if (inst->late_clients && (sc->repeat != 0) && (*loop >= sc->repeat))
+        *loop = 0;
+    inst->late_clients = false;
+    bool ret = (inst->clients != NULL) && ((sc->repeat == 0) || (*loop < sc->repeat));
+    if (!ret)
+        inst->running = false;
+    pthread_mutex_unlock(&inst->lock);
+    return ret;
+}
+
+static void *run_scenario(void *data)
+{
+    int inst_id = (int)(intptr_t)data;
+    stub_instance_t *inst = get_instance(inst_id);
+    const scenario_t *sc = get_scenario(inst_id);
+    struct timespec next;
+
+    ALOGD("instance %d: scenario started\n", inst_id);
+    clock_gettime(CLOCK_MONOTONIC, &next);
+
+    for (int loop = 0; next_loop(inst, sc, &loop); loop++) {
+        for (int i = 0; i < sc->nb_steps; i++) {
+            const scenario_step_t *step = &sc->steps[i];
+            if (step->event == MDM_NUM_EVENTS) {
+                sleep_until(&next, step->interval_us);
+                continue;
+            }
+            for (int n = 0; n < step->count; n++) {
+                if (n > 0)
+                    sleep_until(&next, step->interval_us);
+
+                if ((step->event == MDM_COLD_RESET) || (step->event == MDM_SHUTDOWN)) {
+                    pthread_mutex_lock(&inst->ack_lock);
+                    inst->pending_acks = 0;
+                    pthread_mutex_unlock(&inst->ack_lock);
+                }
+                int acks = broadcast(inst, step->event);
+                if (acks > 0) {
+                    pthread_mutex_lock(&inst->ack_lock);
+                    /* Acknowledgements received during the broadcast are counted negatively */
+                    inst->pending_acks += acks;
+                    pthread_mutex_unlock(&inst->ack_lock);
+                    wait_acks(inst, sc->ack_timeout_ms);
+                    /* Do not count the acknowledgement time in the next intervals */
+                    clock_gettime(CLOCK_MONOTONIC, &next);
+                }
+            }
+        }
+    }
+
+    ALOGD("instance %d: scenario ended\n", inst_id);
+
+    return NULL;
+}
+
+static void start_thread(void *(*routine)(void *), void *data)
+{
+    pthread_t thid;
+    pthread_attr_t attr;
+
+    ASSERT(pthread_attr_init(&attr) == 0);
+    ASSERT(pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED) == 0);
+    ASSERT(pthread_create(&thid, &attr, routine, data) == 0);
+    ASSERT(pthread_attr_destroy(&attr) == 0);
+}
+
+static void acknowledge(const mdm_cli_ctx_t *ctx)
+{
+    stub_instance_t *inst = get_instance(ctx->inst_id);
+
+    pthread_mutex_lock(&inst->ack_lock);
+    inst->pending_acks--;
+    pthread_cond_signal(&inst->ack_cond);
+    pthread_mutex_unlock(&inst->ack_lock);
+}
+
+/**
+ * Not part of mdm_cli.h: lets test tools check the delivery of the scenario events.
+ * Copies, in a consistent snapshot, the number of events of each id sent to the
+ * clients of the instance since the stub was loaded.
+ *
+ * @param [in] inst_id instance
+ * @param [out] emitted event counts, indexed by event id
+ *
+ * @return the sequence number of the last event sent to the instance
+ */
+uint64_t mdm_cli_stub_get_emitted(int inst_id, uint64_t emitted[MDM_NUM_EVENTS])
+{
+    pthread_once(&g_scenario_once, load_scenario);
+
+    stub_instance_t *inst = get_instance(inst_id);
+    pthread_mutex_lock(&inst->lock);
+    memcpy(emitted, inst->emitted, sizeof(inst->emitted));
+    uint64_t seq = inst->seq;
+    pthread_mutex_unlock(&inst->lock);
+
+    return seq;
+}
+
 /**
  * @see mdm_cli.h
  */
 mdm_cli_hdle_t *mdm_cli_connect(const char *client_name, int inst_id,
                                 int nb_evts, const mdm_cli_register_t evts[])
 {
-    (void)inst_id;
-
     ASSERT(nb_evts <= MDM_NUM_EVENTS);
     ASSERT(client_name != NULL);
 
+    pthread_once(&g_scenario_once, load_scenario);
+
     mdm_cli_ctx_t *ctx = calloc(1, sizeof(mdm_cli_ctx_t));
     ASSERT(ctx != NULL);
 
     ctx->client_name = strdup(client_name);
     ASSERT(ctx->client_name != NULL);
+    ctx->inst_id = inst_id;
+    ctx->scenario = get_scenario(inst_id);
 
     unsigned int evt_bitmap = 0;
     for (int i = 0; i < nb_evts; i++) {
@@ -94,15 +565,33 @@ mdm_cli_hdle_t *mdm_cli_connect(const char *client_name, int inst_id,
     }
     ALOGD("client '%s' connected (0x%xu)", client_name, evt_bitmap);
 
-    /* Modem is OOS by default so call client callback (if registered).
-     * The callback needs to be called in a different thread, otherwise, the JNI will crash */
-    if (ctx->evts[MDM_OOS].callback) {
-        pthread_t thid;
-        pthread_attr_t attr;
-        ASSERT(pthread_attr_init(&attr) == 0);
-        ASSERT(pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED) == 0);
-        ASSERT(pthread_create(&thid, &attr, notify_oos, ctx) == 0);
-        ASSERT(pthread_attr_destroy(&attr) == 0);
+    if (stub_call(ctx, API_CONNECT)) {
+        free(ctx->client_name);
+        free(ctx);
+        return NULL;
+    }
+
+    if (!g_scenario_loaded) {
+        /* Modem is OOS by default so call client callback (if registered).
+         * The callback needs to be called in a different thread, otherwise, the JNI will
+         * crash */
+        if (ctx->evts[MDM_OOS].callback) {
+            ASSERT(pthread_create(&ctx->oos_thread, NULL, notify_oos, ctx) == 0);
+            ctx->notifying = true;
+        }
+    } else {
+        stub_instance_t *inst = get_instance(inst_id);
+        pthread_mutex_lock(&inst->lock);
+        ctx->next = inst->clients;
+        inst->clients = ctx;
+        bool start = !inst->running && (ctx->scenario->nb_steps > 0);
+        if (start)
+            inst->running = true;
+        else
+            inst->late_clients = true;
+        pthread_mutex_unlock(&inst->lock);
+        if (start)
+            start_thread(run_scenario, (void *)(intptr_t)inst_id);
     }
 
     return (mdm_cli_hdle_t *)ctx;
@@ -116,10 +605,32 @@ int mdm_cli_disconnect(mdm_cli_hdle_t *hdle)
     ASSERT(hdle != NULL);
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
+    int ret = stub_call(ctx, API_DISCONNECT);
+
+    if (g_scenario_loaded) {
+        stub_instance_t *inst = get_instance(ctx->inst_id);
+        pthread_mutex_lock(&inst->lock);
+        for (mdm_cli_ctx_t **it = &inst->clients; *it; it = &(*it)->next) {
+            if (*it == ctx) {
+                *it = ctx->next;
+                break;
+            }
+        }
+        pthread_mutex_unlock(&inst->lock);
+    }
+
+    /* The client must not be called back once disconnected (see mdm_cli.h) */
+    if (ctx->notifying) {
+        if (pthread_equal(ctx->oos_thread, pthread_self()))
+            pthread_detach(ctx->oos_thread); /* called from the callback */
+        else
+            pthread_join(ctx->oos_thread, NULL);
+    }
+
     free(ctx->client_name);
     free(ctx);
 
-    return 0;
+    return ret;
 }
 
 /**
@@ -131,7 +642,7 @@ int mdm_cli_acquire(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    return stub_call(ctx, API_ACQUIRE);
 }
 
 /**
@@ -143,7 +654,7 @@ int mdm_cli_release(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    return stub_call(ctx, API_RELEASE);
 }
 
 /**
@@ -159,7 +670,7 @@ int mdm_cli_restart(mdm_cli_hdle_t *hdle, mdm_cli_restart_cause_t cause,
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    return stub_call(ctx, API_RESTART);
 }
 
 /**
@@ -171,7 +682,7 @@ int mdm_cli_shutdown(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    return stub_call(ctx, API_SHUTDOWN);
 }
 
 /**
@@ -183,7 +694,7 @@ int mdm_cli_nvm_bckup(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    return stub_call(ctx, API_NVM_BCKUP);
 }
 
 /**
@@ -195,7 +706,9 @@ int mdm_cli_ack_cold_reset(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    acknowledge(ctx);
+
+    return stub_call(ctx, API_ACK_COLD_RESET);
 }
 
 /**
@@ -207,7 +720,9 @@ int mdm_cli_ack_shutdown(mdm_cli_hdle_t *hdle)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    acknowledge(ctx);
+
+    return stub_call(ctx, API_ACK_SHUTDOWN);
 }
 
 /**
@@ -221,5 +736,5 @@ int mdm_cli_notify_dbg(mdm_cli_hdle_t *hdle, const mdm_cli_dbg_info_t *data)
     mdm_cli_ctx_t *ctx = (mdm_cli_ctx_t *)hdle;
     ALOGD("%s: client '%s'", __FUNCTION__, ctx->client_name);
 
-    return 0;
+    return stub_call(ctx, API_NOTIFY_DBG);
 }
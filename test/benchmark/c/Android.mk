@@ -0,0 +1,60 @@
+#############################################
+# libmdmcli dispatch layer benchmark and stress tool
+#############################################
+LOCAL_PATH := $(call my-dir)
+
+MDMCLI_BENCHMARK_CFLAGS := -Wall -Wvla -Wextra -Werror -std=gnu99 -Wunused-function
+
+# Target: measures the installed libmdmcli. Uses libmdmcli_stub for instances
+# that are not declared in TCS
+include $(CLEAR_VARS)
+LOCAL_MODULE := mdmcli_benchmark
+LOCAL_MODULE_TAGS := optional
+LOCAL_PROPRIETARY_MODULE := true
+
+LOCAL_SRC_FILES := mdm_cli_benchmark.c
+LOCAL_CFLAGS := $(MDMCLI_BENCHMARK_CFLAGS)
+LOCAL_SHARED_LIBRARIES := libmdmcli libdl
+LOCAL_REQUIRED_MODULES := libmdmcli_stub
+
+include $(BUILD_EXECUTABLE)
+
+# Host: libmdmcli is built in, without TCS (see MDM_CLI_HOST in mdm_cli.c)
+include $(CLEAR_VARS)
+LOCAL_MODULE := mdmcli_benchmark
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../../../mdmcli/c/inc
+LOCAL_SRC_FILES := mdm_cli_benchmark.c ../../../mdmcli/c/src/mdm_cli.c
+LOCAL_CFLAGS := $(MDMCLI_BENCHMARK_CFLAGS) -DMDM_CLI_HOST
+LOCAL_LDLIBS := -ldl -lpthread
+LOCAL_REQUIRED_MODULES := libmdmcli_stub
+
+include $(BUILD_HOST_EXECUTABLE)
+
+#############################################
+# Multi-client stress tool
+#############################################
+include $(CLEAR_VARS)
+LOCAL_MODULE := mdmcli_stress
+LOCAL_MODULE_TAGS := optional
+LOCAL_PROPRIETARY_MODULE := true
+
+LOCAL_SRC_FILES := mdm_cli_stress.c
+LOCAL_CFLAGS := $(MDMCLI_BENCHMARK_CFLAGS)
+LOCAL_SHARED_LIBRARIES := libmdmcli libdl
+LOCAL_REQUIRED_MODULES := libmdmcli_stub
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+LOCAL_MODULE := mdmcli_stress
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../../../mdmcli/c/inc
+LOCAL_SRC_FILES := mdm_cli_stress.c ../../../mdmcli/c/src/mdm_cli.c
+LOCAL_CFLAGS := $(MDMCLI_BENCHMARK_CFLAGS) -DMDM_CLI_HOST
+LOCAL_LDLIBS := -ldl -lpthread
+LOCAL_REQUIRED_MODULES := libmdmcli_stub
+
+include $(BUILD_HOST_EXECUTABLE)
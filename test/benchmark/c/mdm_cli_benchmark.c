@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Microbenchmark of the libmdmcli dispatch layer, run against libmdmcli_stub.
+ * Each operation is timed individually with CLOCK_MONOTONIC for the latency
+ * percentiles (which include the clock read cost), then a whole loop is timed for
+ * the throughput. Results are printed as a JSON array, like the Java benchmark
+ * (test/benchmark/java).
+ *
+ * "direct" benchmarks call the stub through pointers resolved here, without
+ * libmdmcli: the difference with the matching mdm_cli_* benchmark is the cost of
+ * the dispatch layer.
+ */
+
+#include <dlfcn.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "mdm_cli.h"
+
+#define CLIENT_NAME "mdmcli_benchmark"
+#define STUB_LIB "libmdmcli_stub.so"
+
+typedef struct bench_cfg {
+    int inst_id;
+    int warmup;
+    int iterations;
+} bench_cfg_t;
+
+typedef struct stub_api {
+    void *lib;
+    mdm_cli_hdle_t * (*connect)(const char *client_name, int inst_id,
+                                int nb_evts, const mdm_cli_register_t evts[]);
+    int (*disconnect)(mdm_cli_hdle_t *hdle);
+    int (*acquire)(mdm_cli_hdle_t *hdle);
+    int (*release)(mdm_cli_hdle_t *hdle);
+    int (*notify_dbg)(mdm_cli_hdle_t *hdle, const mdm_cli_dbg_info_t *data);
+} stub_api_t;
+
+typedef enum bench_op {
+    OP_CONNECT,
+    OP_ACQUIRE,
+    OP_RELEASE,
+    OP_RESTART,
+    OP_NOTIFY_DBG,
+    OP_DIRECT_CONNECT,
+    OP_DIRECT_ACQUIRE,
+    OP_DIRECT_NOTIFY_DBG,
+} bench_op_t;
+
+typedef struct bench_ctx {
+    const bench_cfg_t *cfg;
+    mdm_cli_hdle_t *hdle;
+    stub_api_t stub;
+    mdm_cli_hdle_t *stub_hdle;
+    mdm_cli_dbg_info_t dbg_info;
+} bench_ctx_t;
+
+static int g_first_result = 1;
+
+static inline uint64_t now_ns(void)
+{
+    struct timespec ts;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static int compare_u64(const void *a, const void *b)
+{
+    uint64_t x = *(const uint64_t *)a;
+    uint64_t y = *(const uint64_t *)b;
+
+    return (x > y) - (x < y);
+}
+
+static uint64_t percentile(const uint64_t *sorted, int count, double pct)
+{
+    int index = (int)(count * pct / 100.0 + 0.999999) - 1;
+
+    if (index < 0)
+        index = 0;
+    if (index >= count)
+        index = count - 1;
+    return sorted[index];
+}
+
+/**
+ * Runs one operation
+ *
+ * @return 0 if successful
+ */
+static int run_op(bench_ctx_t *ctx, bench_op_t op)
+{
+    int ret = 0;
+    mdm_cli_hdle_t *hdle;
+
+    switch (op) {
+    case OP_CONNECT:
+        /* No event registered: the stub would notify OOS from a thread otherwise */
+        hdle = mdm_cli_connect(CLIENT_NAME, ctx->cfg->inst_id, 0, NULL);
+        ret = hdle ? mdm_cli_disconnect(hdle) : -1;
+        break;
+    case OP_ACQUIRE:
+        ret = mdm_cli_acquire(ctx->hdle);
+        break;
+    case OP_RELEASE:
+        ret = mdm_cli_release(ctx->hdle);
+        break;
+    case OP_RESTART:
+        ret = mdm_cli_restart(ctx->hdle, RESTART_MDM_ERR, &ctx->dbg_info);
+        break;
+    case OP_NOTIFY_DBG:
+        ret = mdm_cli_notify_dbg(ctx->hdle, &ctx->dbg_info);
+        break;
+    case OP_DIRECT_CONNECT:
+        hdle = ctx->stub.connect(CLIENT_NAME, ctx->cfg->inst_id, 0, NULL);
+        ret = hdle ? ctx->stub.disconnect(hdle) : -1;
+        break;
+    case OP_DIRECT_ACQUIRE:
+        ret = ctx->stub.acquire(ctx->stub_hdle);
+        break;
+    case OP_DIRECT_NOTIFY_DBG:
+        ret = ctx->stub.notify_dbg(ctx->stub_hdle, &ctx->dbg_info);
+        break;
+    default:
+        ret = -1;
+        break;
+    }
+
+    return ret;
+}
+
+/**
+ * Measures an operation and prints its result
+ *
+ * @return 0 if successful
+ */
+static int bench(bench_ctx_t *ctx, const char *name, bench_op_t op)
+{
+    int count = ctx->cfg->iterations;
+    uint64_t *samples = malloc(count * sizeof(uint64_t));
+
+    if (!samples) {
+        fprintf(stderr, "%s: allocation failure\n", name);
+        return -1;
+    }
+
+    for (int i = 0; i < ctx->cfg->warmup; i++) {
+        if (run_op(ctx, op)) {
+            fprintf(stderr, "%s: operation failed\n", name);
+            free(samples);
+            return -1;
+        }
+    }
+
+    uint64_t total = 0;
+    for (int i = 0; i < count; i++) {
+        uint64_t start = now_ns();
+        int ret = run_op(ctx, op);
+        samples[i] = now_ns() - start;
+        total += samples[i];
+        if (ret) {
+            fprintf(stderr, "%s: operation failed\n", name);
+            free(samples);
+            return -1;
+        }
+    }
+
+    /* Throughput is measured separately: the clock reads would dominate short calls */
+    uint64_t start = now_ns();
+    for (int i = 0; i < count; i++)
+        run_op(ctx, op);
+    uint64_t elapsed = now_ns() - start;
+
+    qsort(samples, count, sizeof(uint64_t), compare_u64);
+    printf("%s  {\"benchmark\": \"%s\", \"iterations\": %d, \"score\": %.1f, "
+           "\"scoreUnit\": \"ops/s\", \"latencyUnit\": \"ns\", \"latency\": {\"mean\": %llu, "
+           "\"50.0\": %llu, \"90.0\": %llu, \"99.0\": %llu, \"99.9\": %llu, \"max\": %llu}}",
+           g_first_result ? "" : ",\n", name, count, count * 1e9 / elapsed,
+           (unsigned long long)(total / count),
+           (unsigned long long)percentile(samples, count, 50),
+           (unsigned long long)percentile(samples, count, 90),
+           (unsigned long long)percentile(samples, count, 99),
+           (unsigned long long)percentile(samples, count, 99.9),
+           (unsigned long long)samples[count - 1]);
+    g_first_result = 0;
+
+    free(samples);
+    return 0;
+}
+
+static int load_stub(stub_api_t *stub)
+{
+    const char *name = getenv("MDM_CLI_LIB");
+
+    stub->lib = dlopen(name ? name : STUB_LIB, RTLD_NOW | RTLD_LOCAL);
+    if (!stub->lib) {
+        fprintf(stderr, "failed to load stub: %s\n", dlerror());
+        return -1;
+    }
+
+    *(void **)&stub->connect = dlsym(stub->lib, "mdm_cli_connect");
+    *(void **)&stub->disconnect = dlsym(stub->lib, "mdm_cli_disconnect");
+    *(void **)&stub->acquire = dlsym(stub->lib, "mdm_cli_acquire");
+    *(void **)&stub->release = dlsym(stub->lib, "mdm_cli_release");
+    *(void **)&stub->notify_dbg = dlsym(stub->lib, "mdm_cli_notify_dbg");
+
+    if (!stub->connect || !stub->disconnect || !stub->acquire || !stub->release ||
+        !stub->notify_dbg) {
+        fprintf(stderr, "stub symbols not found\n");
+        dlclose(stub->lib);
+        return -1;
+    }
+
+    return 0;
+}
+
+static void usage(const char *name)
+{
+    fprintf(stderr, "usage: %s [-i instance] [-w warmup] [-n iterations]\n", name);
+}
+
+int main(int argc, char *argv[])
+{
+    static char data[MDM_CLI_MAX_NB_DATA][MDM_CLI_MAX_LEN_DATA];
+    const char *data_ptrs[MDM_CLI_MAX_NB_DATA];
+    bench_cfg_t cfg = { 16, 1000, 100000 };
+    bench_ctx_t ctx;
+    int ret = EXIT_FAILURE;
+
+    for (int i = 1; i < argc; i++) {
+        if ((i + 1 < argc) && !strcmp(argv[i], "-i")) {
+            cfg.inst_id = atoi(argv[++i]);
+        } else if ((i + 1 < argc) && !strcmp(argv[i], "-w")) {
+            cfg.warmup = atoi(argv[++i]);
+        } else if ((i + 1 < argc) && !strcmp(argv[i], "-n")) {
+            cfg.iterations = atoi(argv[++i]);
+        } else {
+            usage(argv[0]);
+            return EXIT_FAILURE;
+        }
+    }
+    if ((cfg.iterations < 1) || (cfg.warmup < 0)) {
+        usage(argv[0]);
+        return EXIT_FAILURE;
+    }
+
+    memset(&ctx, 0, sizeof(ctx));
+    ctx.cfg = &cfg;
+
+    /* Largest debug info accepted by the API */
+    for (int i = 0; i < MDM_CLI_MAX_NB_DATA; i++) {
+        memset(data[i], 'x', MDM_CLI_MAX_LEN_DATA - 1);
+        data[i][MDM_CLI_MAX_LEN_DATA - 1] = '\0';
+        data_ptrs[i] = data[i];
+    }
+    ctx.dbg_info.type = DBG_TYPE_INFO;
+    ctx.dbg_info.ap_logs_size = DBG_DEFAULT_NO_LOG;
+    ctx.dbg_info.bp_logs_size = DBG_DEFAULT_NO_LOG;
+    ctx.dbg_info.bp_logs_time = DBG_DEFAULT_NO_LOG;
+    ctx.dbg_info.nb_data = MDM_CLI_MAX_NB_DATA;
+    ctx.dbg_info.data = data_ptrs;
+
+    if (load_stub(&ctx.stub))
+        return EXIT_FAILURE;
+
+    ctx.hdle = mdm_cli_connect(CLIENT_NAME, cfg.inst_id, 0, NULL);
+    ctx.stub_hdle = ctx.stub.connect(CLIENT_NAME, cfg.inst_id, 0, NULL);
+    if (!ctx.hdle || !ctx.stub_hdle) {
+        fprintf(stderr, "connection failure\n");
+        goto out;
+    }
+
+    printf("[\n");
+    if (!bench(&ctx, "connect_disconnect", OP_CONNECT) &&
+        !bench(&ctx, "direct_connect_disconnect", OP_DIRECT_CONNECT) &&
+        !bench(&ctx, "acquire", OP_ACQUIRE) &&
+        !bench(&ctx, "direct_acquire", OP_DIRECT_ACQUIRE) &&
+        !bench(&ctx, "release", OP_RELEASE) &&
+        !bench(&ctx, "restart_max_dbg_info", OP_RESTART) &&
+        !bench(&ctx, "notify_dbg_max_dbg_info", OP_NOTIFY_DBG) &&
+        !bench(&ctx, "direct_notify_dbg_max_dbg_info", OP_DIRECT_NOTIFY_DBG))
+        ret = EXIT_SUCCESS;
+    printf("\n]\n");
+
+out:
+    if (ctx.hdle)
+        mdm_cli_disconnect(ctx.hdle);
+    if (ctx.stub_hdle)
+        ctx.stub.disconnect(ctx.stub_hdle);
+    dlclose(ctx.stub.lib);
+
+    return ret;
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Stress tool for the C client library: connects many clients to one instance,
+ * registered to all events, and drives acquire / release / restart traffic from
+ * several threads while events are received.
+ *
+ * The checks need the emission time and sequence number of the events, given by
+ * the scriptable stub (see stub/mdm_cli_stub.c). Run it with a scenario, e.g.:
+ *   MDM_CLI_STUB_SCENARIO=storm.txt ./mdmcli_stress -c 200 -d 10
+ * Each event emitted after all clients are connected and before the end of the
+ * run must be received once by every client, in emission order: a client misses
+ * the events whose sequence numbers it skips, and the events emitted after the
+ * last one it received. The events emitted during the run are counted by the stub.
+ * Latency is only measured for the events emitted during the run.
+ */
+
+#include <dlfcn.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "mdm_cli.h"
+
+#define STUB_LIB "libmdmcli_stub.so"
+
+#define SUB_BUCKET_BITS 3
+#define SUB_BUCKETS (1 << SUB_BUCKET_BITS)
+#define MAX_EXPONENT 40
+#define NB_BUCKETS ((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS)
+
+/* Log-linear histogram of nanosecond values, updated without lock */
+typedef struct histogram {
+    uint64_t buckets[NB_BUCKETS];
+    uint64_t count;
+    uint64_t max;
+} histogram_t;
+
+typedef enum stress_op {
+    OP_CONNECT,
+    OP_ACQUIRE,
+    OP_RELEASE,
+    OP_RESTART,
+    OP_NUM,
+} stress_op_t;
+
+static const char *const g_op_names[OP_NUM] = { "connect", "acquire", "release", "restart" };
+static const char *const g_event_names[MDM_NUM_EVENTS] = {
+    NULL, "DOWN", "ON", "UP", "OOS", "COLD_RESET", "SHUTDOWN", "DBG_INFO", "TLV_SYNCING"
+};
+
+typedef struct stress_client {
+    /* Events can be received before mdm_cli_connect() returns the handle: lock
+     * protects hdle and the acknowledgements postponed until it is known */
+    pthread_mutex_t lock;
+    mdm_cli_hdle_t *hdle;
+    int pending_acks[MDM_NUM_EVENTS];
+    int index;
+    /* Written by the event thread of the backend only */
+    uint64_t first_seq;
+    uint64_t last_seq;
+    uint64_t lost;
+    uint64_t reordered;
+} stress_client_t;
+
+/* Data of the scenario events, see stub/mdm_cli_stub.c */
+typedef struct stub_event {
+    struct timespec time;
+    uint64_t seq;
+} stub_event_t;
+
+typedef uint64_t (*get_emitted_t)(int inst_id, uint64_t emitted[MDM_NUM_EVENTS]);
+
+typedef struct stress_cfg {
+    int nb_clients;
+    int inst_id;
+    int duration_s;
+    int nb_threads;
+    int restart_permille;
+    bool manual_ack;
+} stress_cfg_t;
+
+static stress_cfg_t g_cfg = { 100, 1, 5, 4, 10, false };
+static stress_client_t *g_clients = NULL;
+/* Latency is measured for the events of sequence (g_seq_start, g_seq_end] */
+static volatile uint64_t g_seq_start = UINT64_MAX;
+static volatile uint64_t g_seq_end = UINT64_MAX;
+static volatile bool g_stop = false;
+
+static histogram_t g_event_latency;
+static histogram_t g_op_latency[OP_NUM];
+static uint64_t g_op_failures[OP_NUM];
+static uint64_t g_untimed_events;
+
+static inline uint64_t now_ns(void)
+{
+    struct timespec ts;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static int bucket_of(uint64_t value)
+{
+    if (value < SUB_BUCKETS)
+        return (int)value;
+
+    int exponent = 63 - __builtin_clzll(value);
+    if (exponent > MAX_EXPONENT)
+        return NB_BUCKETS - 1;
+
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int)((value >> shift) & (SUB_BUCKETS - 1));
+}
+
+static uint64_t highest_value_of(int bucket)
+{
+    if (bucket < SUB_BUCKETS)
+        return bucket;
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    uint64_t lowest = (uint64_t)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1ULL << shift) - 1;
+}
+
+static void histogram_record(histogram_t *h, uint64_t value)
+{
+    __atomic_add_fetch(&h->buckets[bucket_of(value)], 1, __ATOMIC_RELAXED);
+    __atomic_add_fetch(&h->count, 1, __ATOMIC_RELAXED);
+
+    uint64_t max = __atomic_load_n(&h->max, __ATOMIC_RELAXED);
+    while ((value > max) &&
+           !__atomic_compare_exchange_n(&h->max, &max, value, true, __ATOMIC_RELAXED,
+                                        __ATOMIC_RELAXED)) {
+    }
+}
+
+static uint64_t histogram_percentile(const histogram_t *h, double pct)
+{
+    uint64_t rank = (uint64_t)(h->count * pct / 100.0 + 0.999999);
+    uint64_t seen = 0;
+
+    if (rank < 1)
+        rank = 1;
+    for (int i = 0; i < NB_BUCKETS; i++) {
+        seen += h->buckets[i];
+        if (seen >= rank) {
+            uint64_t value = highest_value_of(i);
+            return (value < h->max) ? value : h->max;
+        }
+    }
+    return h->max;
+}
+
+static void print_histogram(const char *name, const histogram_t *h, const char *suffix)
+{
+    printf("    \"%s\": {\"count\": %llu, \"50.0\": %llu, \"90.0\": %llu, \"99.0\": %llu, "
+           "\"99.9\": %llu, \"max\": %llu}%s\n", name, (unsigned long long)h->count,
+           (unsigned long long)histogram_percentile(h, 50),
+           (unsigned long long)histogram_percentile(h, 90),
+           (unsigned long long)histogram_percentile(h, 99),
+           (unsigned long long)histogram_percentile(h, 99.9),
+           (unsigned long long)h->max, suffix);
+}
+
+/**
+ * Reads the emission time and sequence number given by the stub
+ *
+ * @return false if the event does not come from a scenario
+ */
+static bool get_stamp(const mdm_cli_callback_data_t *ev, uint64_t *seq, uint64_t *time)
+{
+    if (ev->id == MDM_DBG_INFO) {
+        const mdm_cli_dbg_info_t *dbg = (const mdm_cli_dbg_info_t *)ev->data;
+        unsigned long long s, t;
+
+        if (!dbg || (ev->data_size != sizeof(*dbg)) || (dbg->nb_data < 2) ||
+            (sscanf(dbg->data[1], "%llu %llu", &s, &t) != 2))
+            return false;
+        *seq = s;
+        *time = t;
+    } else {
+        const stub_event_t *data = (const stub_event_t *)ev->data;
+
+        if (!data || (ev->data_size != sizeof(*data)))
+            return false;
+        *seq = data->seq;
+        *time = (uint64_t)data->time.tv_sec * 1000000000ULL + data->time.tv_nsec;
+    }
+    return true;
+}
+
+static void acknowledge(mdm_cli_hdle_t *hdle, mdm_cli_event_t id)
+{
+    if (id == MDM_COLD_RESET)
+        mdm_cli_ack_cold_reset(hdle);
+    else
+        mdm_cli_ack_shutdown(hdle);
+}
+
+static int event_cb(const mdm_cli_callback_data_t *ev)
+{
+    stress_client_t *client = (stress_client_t *)ev->context;
+    uint64_t now = now_ns();
+    uint64_t seq, time;
+
+    if (!client || (ev->id >= MDM_NUM_EVENTS))
+        return 0;
+
+    if (get_stamp(ev, &seq, &time)) {
+        if ((seq > g_seq_start) && (seq <= g_seq_end))
+            histogram_record(&g_event_latency, now - time);
+        if (!client->first_seq) {
+            client->first_seq = seq;
+        } else if (seq > client->last_seq + 1) {
+            client->lost += seq - client->last_seq - 1;
+        } else if (seq <= client->last_seq) {
+            /* Counted as lost when the next one was received */
+            client->lost--;
+            client->reordered++;
+        }
+        if (seq > client->last_seq)
+            __atomic_store_n(&client->last_seq, seq, __ATOMIC_RELAXED);
+    } else {
+        __atomic_add_fetch(&g_untimed_events, 1, __ATOMIC_RELAXED);
+    }
+
+    if (g_cfg.manual_ack && ((ev->id == MDM_COLD_RESET) || (ev->id == MDM_SHUTDOWN))) {
+        pthread_mutex_lock(&client->lock);
+        if (client->hdle)
+            acknowledge(client->hdle, ev->id);
+        else
+            client->pending_acks[ev->id]++;
+        pthread_mutex_unlock(&client->lock);
+        return 1;
+    }
+
+    return 0;
+}
+
+static void *traffic_thread(void *data)
+{
+    unsigned int seed = (unsigned int)(uintptr_t)data;
+    const char *causes[] = { "mdmcli_stress", "restart" };
+    mdm_cli_dbg_info_t dbg_info = { DBG_TYPE_INFO, DBG_DEFAULT_NO_LOG, DBG_DEFAULT_NO_LOG,
+                                    DBG_DEFAULT_NO_LOG, 2, causes };
+
+    while (!g_stop) {
+        stress_client_t *client = &g_clients[rand_r(&seed) % g_cfg.nb_clients];
+        bool restart = (int)(rand_r(&seed) % 1000) < g_cfg.restart_permille;
+        stress_op_t ops[2] = { OP_ACQUIRE, OP_RELEASE };
+        int nb_ops = 2;
+
+        if (restart) {
+            ops[0] = OP_RESTART;
+            nb_ops = 1;
+        }
+        for (int i = 0; i < nb_ops; i++) {
+            uint64_t start = now_ns();
+            int ret;
+            if (ops[i] == OP_ACQUIRE)
+                ret = mdm_cli_acquire(client->hdle);
+            else if (ops[i] == OP_RELEASE)
+                ret = mdm_cli_release(client->hdle);
+            else
+                ret = mdm_cli_restart(client->hdle, RESTART_MDM_ERR, &dbg_info);
+            histogram_record(&g_op_latency[ops[i]], now_ns() - start);
+            if (ret)
+                __atomic_add_fetch(&g_op_failures[ops[i]], 1, __ATOMIC_RELAXED);
+        }
+    }
+
+    return NULL;
+}
+
+static void usage(const char *name)
+{
+    fprintf(stderr, "usage: %s [-c clients] [-i instance] [-d duration_s] [-t threads]"
+            " [-r restart_permille] [-m]\n"
+            "  -m: acknowledge cold reset and shutdown through the API\n", name);
+}
+
+static get_emitted_t load_stub(void)
+{
+    const char *name = getenv("MDM_CLI_LIB");
+    get_emitted_t get_emitted = NULL;
+
+    /* Same library as the one loaded by libmdmcli for the instance */
+    void *lib = dlopen(name ? name : STUB_LIB, RTLD_NOW | RTLD_LOCAL);
+    if (lib)
+        *(void **)&get_emitted = dlsym(lib, "mdm_cli_stub_get_emitted");
+    if (!get_emitted)
+        fprintf(stderr, "failed to load stub: %s\n", dlerror());
+
+    return get_emitted;
+}
+
+static int parse_args(int argc, char *argv[])
+{
+    int opt;
+
+    while ((opt = getopt(argc, argv, "c:i:d:t:r:m")) != -1) {
+        switch (opt) {
+        case 'c':
+            g_cfg.nb_clients = atoi(optarg);
+            break;
+        case 'i':
+            g_cfg.inst_id = atoi(optarg);
+            break;
+        case 'd':
+            g_cfg.duration_s = atoi(optarg);
+            break;
+        case 't':
+            g_cfg.nb_threads = atoi(optarg);
+            break;
+        case 'r':
+            g_cfg.restart_permille = atoi(optarg);
+            break;
+        case 'm':
+            g_cfg.manual_ack = true;
+            break;
+        default:
+            return -1;
+        }
+    }
+
+    if ((g_cfg.nb_clients < 1) || (g_cfg.duration_s < 1) || (g_cfg.nb_threads < 0))
+        return -1;
+    return 0;
+}
+
+int main(int argc, char *argv[])
+{
+    mdm_cli_register_t evts[MDM_NUM_EVENTS - 1];
+    uint64_t emitted_start[MDM_NUM_EVENTS], emitted_end[MDM_NUM_EVENTS];
+    pthread_t *threads = NULL;
+    int nb_connected = 0;
+    int ret = EXIT_FAILURE;
+
+    if (parse_args(argc, argv)) {
+        usage(argv[0]);
+        return EXIT_FAILURE;
+    }
+
+    get_emitted_t get_emitted = load_stub();
+    if (!get_emitted)
+        return EXIT_FAILURE;
+
+    g_clients = calloc(g_cfg.nb_clients, sizeof(stress_client_t));
+    threads = calloc(g_cfg.nb_threads + 1, sizeof(pthread_t));
+    if (!g_clients || !threads) {
+        fprintf(stderr, "allocation failure\n");
+        goto out;
+    }
+    for (int i = 0; i < g_cfg.nb_clients; i++)
+        pthread_mutex_init(&g_clients[i].lock, NULL);
+
+    for (int i = 0; i < g_cfg.nb_clients; i++) {
+        char name[32];
+        stress_client_t *client = &g_clients[i];
+
+        client->index = i;
+        for (int ev = MDM_DOWN; ev < MDM_NUM_EVENTS; ev++) {
+            evts[ev - 1].id = (mdm_cli_event_t)ev;
+            evts[ev - 1].callback = event_cb;
+            evts[ev - 1].context = client;
+        }
+        snprintf(name, sizeof(name), "stress%d", i);
+
+        uint64_t start = now_ns();
+        mdm_cli_hdle_t *hdle = mdm_cli_connect(name, g_cfg.inst_id, MDM_NUM_EVENTS - 1, evts);
+        histogram_record(&g_op_latency[OP_CONNECT], now_ns() - start);
+        if (!hdle) {
+            g_op_failures[OP_CONNECT]++;
+            fprintf(stderr, "client %d: connection failure\n", i);
+            goto out;
+        }
+        pthread_mutex_lock(&client->lock);
+        client->hdle = hdle;
+        for (int ev = MDM_COLD_RESET; ev <= MDM_SHUTDOWN; ev++) {
+            for (; client->pending_acks[ev] > 0; client->pending_acks[ev]--)
+                acknowledge(hdle, (mdm_cli_event_t)ev);
+        }
+        pthread_mutex_unlock(&client->lock);
+        nb_connected++;
+    }
+
+    /* Events are sent under the lock of the instance: the ones counted here have
+     * been received by the clients */
+    uint64_t seq_start = get_emitted(g_cfg.inst_id, emitted_start);
+    g_seq_start = seq_start;
+    uint64_t run_start = now_ns();
+    for (int i = 0; i < g_cfg.nb_threads; i++) {
+        if (pthread_create(&threads[i], NULL, traffic_thread, (void *)(uintptr_t)(i + 1))) {
+            fprintf(stderr, "thread creation failure\n");
+            g_stop = true;
+            g_cfg.nb_threads = i;
+            break;
+        }
+    }
+
+    sleep(g_cfg.duration_s);
+    uint64_t seq_end = get_emitted(g_cfg.inst_id, emitted_end);
+    g_seq_end = seq_end;
+    double elapsed = (now_ns() - run_start) / 1e9;
+    g_stop = true;
+    for (int i = 0; i < g_cfg.nb_threads; i++)
+        pthread_join(threads[i], NULL);
+    /* No more events: the counters of the clients are stable */
+    for (; nb_connected > 0; nb_connected--)
+        mdm_cli_disconnect(g_clients[nb_connected - 1].hdle);
+
+    /* Each event of sequence (seq_start, seq_end] must have been received by every
+     * client. Losses after seq_end are counted too: the events were sent */
+    uint64_t lost = 0;
+    uint64_t reordered = 0;
+    for (int i = 0; i < g_cfg.nb_clients; i++) {
+        const stress_client_t *client = &g_clients[i];
+        uint64_t last = (client->last_seq > seq_start) ? client->last_seq : seq_start;
+
+        if (client->first_seq > seq_start + 1)
+            lost += client->first_seq - seq_start - 1;
+        if (last < seq_end)
+            lost += seq_end - last;
+        lost += client->lost;
+        reordered += client->reordered;
+    }
+
+    uint64_t nb_ops = 0;
+    for (int op = OP_ACQUIRE; op < OP_NUM; op++)
+        nb_ops += g_op_latency[op].count;
+
+    printf("{\n  \"clients\": %d, \"threads\": %d, \"duration_s\": %.3f,\n", g_cfg.nb_clients,
+           g_cfg.nb_threads, elapsed);
+    printf("  \"operations_per_s\": %.1f, \"events_per_s\": %.1f,\n", nb_ops / elapsed,
+           g_event_latency.count / elapsed);
+    printf("  \"events\": {");
+    for (int ev = MDM_DOWN; ev < MDM_NUM_EVENTS; ev++)
+        printf("\"%s\": %llu%s", g_event_names[ev],
+               (unsigned long long)(emitted_end[ev] - emitted_start[ev]),
+               (ev + 1 < MDM_NUM_EVENTS) ? ", " : "},\n");
+    printf("  \"deliveries\": %llu, \"lost\": %llu, \"reordered\": %llu, \"untimed\": %llu,\n",
+           (unsigned long long)g_event_latency.count, (unsigned long long)lost,
+           (unsigned long long)reordered, (unsigned long long)g_untimed_events);
+    printf("  \"failures\": {");
+    for (int op = 0; op < OP_NUM; op++)
+        printf("\"%s\": %llu%s", g_op_names[op], (unsigned long long)g_op_failures[op],
+               (op + 1 < OP_NUM) ? ", " : "},\n");
+    printf("  \"latencyUnit\": \"ns\",\n  \"latency\": {\n");
+    print_histogram("event_delivery", &g_event_latency, ",");
+    for (int op = 0; op < OP_NUM; op++)
+        print_histogram(g_op_names[op], &g_op_latency[op], (op + 1 < OP_NUM) ? "," : "");
+    printf("  }\n}\n");
+
+    ret = (lost || reordered) ? EXIT_FAILURE : EXIT_SUCCESS;
+
+out:
+    g_stop = true;
+    for (int i = 0; i < nb_connected; i++)
+        mdm_cli_disconnect(g_clients[i].hdle);
+    for (int i = 0; g_clients && (i < g_cfg.nb_clients); i++)
+        pthread_mutex_destroy(&g_clients[i].lock);
+    free(g_clients);
+    free(threads);
+
+    return ret;
+}
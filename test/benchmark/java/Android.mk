@@ -0,0 +1,26 @@
+#############################################
+# Java client API benchmarks
+#############################################
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+LOCAL_MODULE := mdmcli-benchmark-lib
+LOCAL_MODULE_TAGS := optional
+LOCAL_PROPRIETARY_MODULE := true
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_STATIC_JAVA_LIBRARIES := com.intel.internal.telephony.ModemClient
+LOCAL_REQUIRED_MODULES := libmdmcli_jni libmdmcli_stub
+
+include $(BUILD_JAVA_LIBRARY)
+
+# Runs the benchmarks with app_process. Usage: mdmcli-benchmark --help
+include $(CLEAR_VARS)
+LOCAL_MODULE := mdmcli-benchmark
+LOCAL_MODULE_TAGS := optional
+LOCAL_PROPRIETARY_MODULE := true
+LOCAL_MODULE_CLASS := EXECUTABLES
+LOCAL_SRC_FILES := mdmcli-benchmark
+LOCAL_REQUIRED_MODULES := mdmcli-benchmark-lib
+
+include $(BUILD_PREBUILT)
@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony.benchmark;
+
+import android.os.Message;
+
+import com.intel.internal.telephony.DebugInfoEntries;
+import com.intel.internal.telephony.DebugInfoLog;
+import com.intel.internal.telephony.DebugInfoType;
+import com.intel.internal.telephony.ModemClientException;
+import com.intel.internal.telephony.ModemEventListener;
+import com.intel.internal.telephony.ModemStatus;
+import com.intel.internal.telephony.ModemStatusManager;
+import com.intel.internal.telephony.ModemStatusMonitor;
+import com.intel.internal.telephony.TimedModemEventListener;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the Java client API, run with app_process (see the mdmcli-benchmark
+ * script). Results are printed as a JSON array, one object per benchmark and
+ * parameter set, so that releases can be compared.
+ *
+ * libmdmcli loads libmdmcli_stub.so for instances that are not declared in TCS:
+ * the default instance is chosen for that, so that only the client library is
+ * measured.
+ *
+ * eventDelivery measures the delay between the arrival of an event in the native
+ * layer and its listener. Without stub scenario, the stub sends a single MDM_OOS to
+ * each client, from a new thread: its delay includes the attachment of that thread
+ * to the VM ("thread": "new"). Events following the first one of a connection come
+ * from a thread already attached ("thread": "attached"): they are only measured if a
+ * stub scenario sends several events per connection, e.g. a file with
+ * "event UP 20 100" set in vendor.mdmcli.stub.scenario. The scenario must end before
+ * the next connection, so that each connection starts a new scenario thread.
+ */
+public class ModemClientBenchmark {
+    private static final String CLIENT_NAME = "mdmcli-benchmark";
+
+    private static final int[] LISTENERS = { 1, 4, 16 };
+    private static final int[] CAUSES = { 0, 1, 6 };
+    private static final int[] CAUSE_SIZES = { 16, 512 };
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final int[] BATCH_SIZES = { 1, 16, 128 };
+    /* Maximum delay of a batched debug info (ms): batches are sent when full */
+    private static final long BATCH_DELAY = 1000;
+
+    /* eventDelivery: connections per round, and limits of the events awaited per connection */
+    private static final int EVENT_CONNECTIONS = 200;
+    private static final int EVENTS_PER_CONNECTION = 64;
+    private static final long FIRST_EVENT_TIMEOUT = 1000;
+    private static final long NEXT_EVENT_TIMEOUT = 5;
+
+    private int mInstance = 16;
+    private int mWarmup = 2000;
+    private int mIterations = 20000;
+    private int mRounds = 5;
+    private String mFilter = null;
+    private String mOutput = null;
+
+    private ModemStatusManager mManager;
+    private final List<Result> mResults = new ArrayList<Result>();
+
+    public static void main(String[] args) {
+        ModemClientBenchmark benchmark = new ModemClientBenchmark();
+        try {
+            benchmark.parseArgs(args);
+            benchmark.run();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+            System.exit(1);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("usage: mdmcli-benchmark [--instance N] [--warmup N] [--iterations N]"
+                           + " [--rounds N] [--filter NAME] [--output FILE]");
+        System.err.println("  benchmarks: eventDelivery, dispatch, acquireRelease,"
+                           + " notifyDebugInfo, notifyDebugInfoBuffer, notifyDebugInfoBatched,"
+                           + " contention");
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            try {
+                if ("--instance".equals(args[i - 1])) {
+                    mInstance = Integer.parseInt(value);
+                } else if ("--warmup".equals(args[i - 1])) {
+                    mWarmup = Integer.parseInt(value);
+                } else if ("--iterations".equals(args[i - 1])) {
+                    mIterations = Integer.parseInt(value);
+                } else if ("--rounds".equals(args[i - 1])) {
+                    mRounds = Integer.parseInt(value);
+                } else if ("--filter".equals(args[i - 1])) {
+                    mFilter = value;
+                } else if ("--output".equals(args[i - 1])) {
+                    mOutput = value;
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid value for " + args[i - 1]);
+            }
+        }
+        if (mIterations < 1 || mRounds < 1 || mWarmup < 0) {
+            throw new IllegalArgumentException("Invalid iteration count");
+        }
+    }
+
+    private boolean enabled(String name) {
+        return mFilter == null || name.equals(mFilter);
+    }
+
+    private void run() throws Exception {
+        mManager = ModemStatusManager.getInstance(null, mInstance, null);
+        if (enabled("eventDelivery")) {
+            /* Connects by itself: done first, so that no other client keeps a scenario running */
+            benchmarkEventDelivery();
+        }
+        mManager.connect(CLIENT_NAME);
+        try {
+            if (enabled("dispatch")) {
+                for (int listeners : LISTENERS) {
+                    benchmarkDispatch(listeners);
+                }
+            }
+            if (enabled("acquireRelease")) {
+                benchmarkAcquireRelease();
+            }
+            if (enabled("notifyDebugInfo")) {
+                for (int causes : CAUSES) {
+                    for (int size : CAUSE_SIZES) {
+                        benchmarkNotifyDebugInfo(causes, size);
+                        if (causes == 0) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (enabled("notifyDebugInfoBuffer")) {
+                for (int causes : CAUSES) {
+                    for (int size : CAUSE_SIZES) {
+                        benchmarkNotifyDebugInfoBuffer(causes, size);
+                        if (causes == 0) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (enabled("notifyDebugInfoBatched")) {
+                for (int batchSize : BATCH_SIZES) {
+                    benchmarkNotifyDebugInfoBatched(batchSize);
+                }
+            }
+            if (enabled("contention")) {
+                for (int threads : THREADS) {
+                    benchmarkContention(threads);
+                }
+            }
+        } finally {
+            mManager.disconnect();
+        }
+        writeResults();
+    }
+
+    /* Operation measured by the single thread benchmarks */
+    private interface Operation {
+        void run() throws ModemClientException;
+    }
+
+    /* Measures each call of operation: latency percentiles and throughput */
+    private Result measure(String name, String params, Operation operation)
+    throws ModemClientException {
+        for (int i = 0; i < mWarmup; i++) {
+            operation.run();
+        }
+
+        long[] latencies = new long[mIterations * mRounds];
+        double[] throughputs = new double[mRounds];
+        int n = 0;
+        for (int round = 0; round < mRounds; round++) {
+            long roundStart = System.nanoTime();
+            for (int i = 0; i < mIterations; i++) {
+                long start = System.nanoTime();
+                operation.run();
+                latencies[n++] = System.nanoTime() - start;
+            }
+            throughputs[round] = mIterations * 1e9 / (System.nanoTime() - roundStart);
+        }
+
+        Result result = new Result(name, params, throughputs);
+        result.setLatencies(latencies);
+        mResults.add(result);
+        return result;
+    }
+
+    /* Delays of the events received during one connection */
+    private static final class EventDelays implements TimedModemEventListener {
+        final long[] delays = new long[EVENTS_PER_CONNECTION];
+        int count = 0;
+
+        synchronized void record(long eventTimeNanos) {
+            if (count < delays.length) {
+                delays[count++] = System.nanoTime() - eventTimeNanos;
+                notifyAll();
+            }
+        }
+
+        /* Waits until count events are received, at most timeout ms. Returns the count */
+        synchronized int await(int count, long timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            long remaining;
+            while (this.count < count
+                   && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return this.count;
+        }
+
+        @Override
+        public void onModemUp(long eventTimeNanos) {
+            record(eventTimeNanos);
+        }
+
+        @Override
+        public void onModemDown(long eventTimeNanos) {
+            record(eventTimeNanos);
+        }
+
+        @Override
+        public void onModemDead(long eventTimeNanos) {
+            record(eventTimeNanos);
+        }
+
+        @Override
+        public void onModemUp() {
+        }
+
+        @Override
+        public void onModemDown() {
+        }
+
+        @Override
+        public void onModemDead() {
+        }
+    }
+
+    /*
+     * Delay from the native arrival of the events to the listener, over EVENT_CONNECTIONS
+     * connections per round. The first event of each connection is sent by a stub thread
+     * not yet attached to the VM.
+     */
+    private void benchmarkEventDelivery() throws Exception {
+        long[] first = new long[EVENT_CONNECTIONS * mRounds];
+        long[] next = new long[EVENT_CONNECTIONS * mRounds * (EVENTS_PER_CONNECTION - 1)];
+        int nbNext = 0;
+        double[] firstThroughputs = new double[mRounds];
+        double[] nextThroughputs = new double[mRounds];
+        for (int round = -1; round < mRounds; round++) {
+            int connections = (round < 0) ? Math.min(mWarmup, EVENT_CONNECTIONS)
+                              : EVENT_CONNECTIONS;
+            long events = 0;
+            long roundStart = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                EventDelays listener = new EventDelays();
+                /* Subscriptions are cancelled by disconnect(): subscribe for each connection */
+                mManager.subscribeToEvent(listener, ModemStatus.ALL);
+                mManager.connect(CLIENT_NAME);
+                try {
+                    int count = listener.await(1, FIRST_EVENT_TIMEOUT);
+                    if (count == 0) {
+                        throw new ModemClientException("No event received after connection");
+                    }
+                    /* Following events, until none is received for NEXT_EVENT_TIMEOUT */
+                    int received;
+                    while (count < EVENTS_PER_CONNECTION
+                           && (received = listener.await(count + 1, NEXT_EVENT_TIMEOUT)) > count) {
+                        count = received;
+                    }
+                } finally {
+                    mManager.disconnect();
+                }
+                if (round >= 0) {
+                    synchronized (listener) {
+                        first[round * EVENT_CONNECTIONS + i] = listener.delays[0];
+                        System.arraycopy(listener.delays, 1, next, nbNext, listener.count - 1);
+                        nbNext += listener.count - 1;
+                        events += listener.count - 1;
+                    }
+                }
+            }
+            if (round >= 0) {
+                double elapsed = System.nanoTime() - roundStart;
+                firstThroughputs[round] = connections * 1e9 / elapsed;
+                nextThroughputs[round] = events * 1e9 / elapsed;
+            }
+        }
+
+        Result result = new Result("eventDelivery", "\"thread\": \"new\"", firstThroughputs);
+        result.iterations = EVENT_CONNECTIONS;
+        result.setLatencies(first);
+        mResults.add(result);
+        if (nbNext > 0) {
+            result = new Result("eventDelivery", "\"thread\": \"attached\"", nextThroughputs);
+            result.iterations = EVENT_CONNECTIONS;
+            result.setLatencies(Arrays.copyOf(next, nbNext));
+            mResults.add(result);
+        }
+    }
+
+    /*
+     * Event dispatch of ModemStatusManager: messages are handed to handleMessage as the
+     * monitor would, so that the dispatch is measured without the stub, which only
+     * sends one event per connection.
+     */
+    private void benchmarkDispatch(int listeners) throws ModemClientException {
+        final int[] received = new int[1];
+        ModemEventListener[] subscribed = new ModemEventListener[listeners];
+        for (int i = 0; i < listeners; i++) {
+            subscribed[i] = new ModemEventListener() {
+                @Override
+                public void onModemUp() {
+                    received[0]++;
+                }
+
+                @Override
+                public void onModemDown() {
+                    received[0]++;
+                }
+
+                @Override
+                public void onModemDead() {
+                    received[0]++;
+                }
+            };
+            mManager.subscribeToEvent(subscribed[i], ModemStatus.ALL);
+        }
+
+        final Message msg = Message.obtain();
+        msg.what = ModemStatusMonitor.MSG_STATUS;
+        try {
+            measure("dispatch", "\"listeners\": " + listeners, new Operation() {
+                @Override
+                public void run() {
+                    msg.arg1 = (msg.arg1 == ModemStatusMonitor.MDM_UP) ?
+                               ModemStatusMonitor.MDM_DOWN : ModemStatusMonitor.MDM_UP;
+                    mManager.handleMessage(msg);
+                }
+            });
+        } finally {
+            for (ModemEventListener listener : subscribed) {
+                mManager.unsubscribeFromEvent(listener);
+            }
+        }
+    }
+
+    private void benchmarkAcquireRelease() throws ModemClientException {
+        measure("acquireRelease", "", new Operation() {
+            @Override
+            public void run() throws ModemClientException {
+                mManager.acquireModem();
+                mManager.releaseModem();
+            }
+        });
+    }
+
+    private static String[] makeCauses(int count, int size) {
+        String[] causes = new String[count];
+        char[] chars = new char[size - 1]; // the native size includes the terminating 0
+        Arrays.fill(chars, 'x');
+        for (int i = 0; i < count; i++) {
+            causes[i] = new String(chars);
+        }
+        return causes;
+    }
+
+    private void benchmarkNotifyDebugInfo(int count, int size) throws ModemClientException {
+        final String[] causes = makeCauses(count, size);
+        measure("notifyDebugInfo", "\"causes\": " + count + ", \"size\": " + size,
+        new Operation() {
+            @Override
+            public void run() throws ModemClientException {
+                mManager.notifyDebugInfo(causes, DebugInfoType.STATS,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG);
+            }
+        });
+    }
+
+    private void benchmarkNotifyDebugInfoBuffer(int count, int size) throws ModemClientException {
+        final ByteBuffer entries = ByteBuffer.allocateDirect(
+            DebugInfoEntries.MAX_NB_DATA * (DebugInfoEntries.MAX_LEN_DATA + 2));
+        for (String cause : makeCauses(count, size)) {
+            DebugInfoEntries.put(entries, cause.getBytes(StandardCharsets.UTF_8));
+        }
+        entries.flip();
+        measure("notifyDebugInfoBuffer", "\"causes\": " + count + ", \"size\": " + size,
+        new Operation() {
+            @Override
+            public void run() throws ModemClientException {
+                mManager.notifyDebugInfo(entries, DebugInfoType.STATS,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG);
+            }
+        });
+    }
+
+    /*
+     * notifyDebugInfo() with batching: the latency is the one seen by the caller, the
+     * score counts the debug infos sent per second, including the final flush of each round.
+     */
+    private void benchmarkNotifyDebugInfoBatched(int batchSize) throws ModemClientException {
+        final String[] causes = makeCauses(1, 16);
+        long[] latencies = new long[mIterations * mRounds];
+        double[] throughputs = new double[mRounds];
+        int n = 0;
+        for (int round = -1; round < mRounds; round++) {
+            int iterations = (round < 0) ? mWarmup : mIterations;
+            mManager.setDebugInfoBatching(batchSize, BATCH_DELAY);
+            long roundStart = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                mManager.notifyDebugInfo(causes, DebugInfoType.STATS,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                         DebugInfoLog.DBG_DEFAULT_NO_LOG);
+                if (round >= 0) {
+                    latencies[n++] = System.nanoTime() - start;
+                }
+            }
+            // waits for the queued debug infos to be sent
+            mManager.setDebugInfoBatching(1, 0);
+            if (round >= 0) {
+                throughputs[round] = iterations * 1e9 / (System.nanoTime() - roundStart);
+            }
+        }
+
+        Result result = new Result("notifyDebugInfoBatched", "\"batchSize\": " + batchSize,
+                                   throughputs);
+        result.setLatencies(latencies);
+        mResults.add(result);
+    }
+
+    /* acquire / release pairs issued concurrently on the same client */
+    private void benchmarkContention(final int threads) throws Exception {
+        double[] throughputs = new double[mRounds];
+        for (int round = -1; round < mRounds; round++) {
+            final int iterations = (round < 0) ? mWarmup : mIterations;
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final Exception[] failure = new Exception[1];
+            for (int t = 0; t < threads; t++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < iterations; i++) {
+                                mManager.acquireModem();
+                                mManager.releaseModem();
+                            }
+                        } catch (Exception ex) {
+                            failure[0] = ex;
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "benchmark-" + t).start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            if (round >= 0) {
+                throughputs[round] = (double)iterations * threads * 1e9 / elapsed;
+            }
+        }
+        mResults.add(new Result("contention", "\"threads\": " + threads, throughputs));
+    }
+
+    private void writeResults() throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < mResults.size(); i++) {
+            mResults.get(i).appendTo(json, mIterations, mRounds);
+            json.append((i + 1 < mResults.size()) ? ",\n" : "\n");
+        }
+        json.append("]\n");
+
+        if (mOutput == null) {
+            System.out.print(json);
+            System.out.flush();
+        } else {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(mOutput),
+                                                   StandardCharsets.UTF_8);
+            try {
+                writer.write(json.toString());
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /* Result of one benchmark for one parameter set */
+    private static final class Result {
+        private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+        final String name;
+        final String params;
+        final double[] throughputs;
+        long[] latencies = null;
+        /* If not 0, overrides the iteration count of the run */
+        int iterations = 0;
+
+        Result(String name, String params, double[] throughputs) {
+            this.name = name;
+            this.params = params;
+            this.throughputs = throughputs;
+        }
+
+        void setLatencies(long[] latencies) {
+            Arrays.sort(latencies);
+            this.latencies = latencies;
+        }
+
+        void appendTo(StringBuilder json, int iterations, int rounds) {
+            double mean = 0;
+            for (double value : throughputs) {
+                mean += value;
+            }
+            mean /= throughputs.length;
+            double variance = 0;
+            for (double value : throughputs) {
+                variance += (value - mean) * (value - mean);
+            }
+            double stddev = (throughputs.length > 1) ?
+                            Math.sqrt(variance / (throughputs.length - 1)) : 0;
+
+            json.append("  {\"benchmark\": \"").append(name).append('"')
+            .append(", \"params\": {").append(params).append('}')
+            .append(", \"iterations\": ").append((this.iterations != 0) ? this.iterations
+                                                   : iterations)
+            .append(", \"rounds\": ").append(rounds)
+            .append(", \"score\": ").append(String.format(Locale.US, "%.1f", mean))
+            .append(", \"scoreError\": ").append(String.format(Locale.US, "%.1f", stddev))
+            .append(", \"scoreUnit\": \"ops/s\"");
+            if (latencies != null) {
+                json.append(", \"latencyUnit\": \"ns\", \"latency\": {");
+                for (double percentile : PERCENTILES) {
+                    int index = (int)Math.ceil(latencies.length * percentile / 100) - 1;
+                    json.append('"').append(percentile).append("\": ")
+                    .append(latencies[Math.max(index, 0)]).append(", ");
+                }
+                json.append("\"max\": ").append(latencies[latencies.length - 1]).append('}');
+            }
+            json.append('}');
+        }
+    }
+}
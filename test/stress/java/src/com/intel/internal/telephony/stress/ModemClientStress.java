@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) Intel 2015
+ *
+ * Modem Client library has been designed by:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *  - Marc Bellanger <marc.bellanger@intel.com>
+ *
+ * Original contributors are:
+ *  - Cesar De Oliveira <cesar.de.oliveira@intel.com>
+ *  - Edward Marmounier <edward.marmounier@intel.com>
+ *  - Lionel Ulmer <lionel.ulmer@intel.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.internal.telephony.stress;
+
+import com.intel.internal.telephony.DebugInfoLog;
+import com.intel.internal.telephony.DebugInfoType;
+import com.intel.internal.telephony.ModemClientException;
+import com.intel.internal.telephony.ModemStatus;
+import com.intel.internal.telephony.ModemStatusManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test of the client handles, run with app_process (see the mdmcli-stress
+ * script). Two instances are used at the same time: for each of them, a thread
+ * connects and disconnects in a loop while other threads keep calling the modem
+ * operations. Calls may fail while the client is disconnected, but must never
+ * use the native context of a disconnected client, and each connection must
+ * receive its own events.
+ *
+ * libmdmcli loads libmdmcli_stub.so for instances that are not declared in TCS. The
+ * stub sends MDM_OOS to each new client: it is awaited after each connection.
+ *
+ * A summary is printed as JSON. The exit code is 1 if an error was detected.
+ */
+public class ModemClientStress {
+    private static final String CLIENT_NAME = "mdmcli-stress";
+    /* Maximum time to receive the status of a new connection */
+    private static final long STATUS_TIMEOUT = 2000;
+
+    private int[] mInstances = { 16, 17 };
+    private int mThreads = 4;
+    private int mDuration = 10;
+
+    private volatile long mDeadline;
+    private final List<String> mErrors = new ArrayList<String>();
+
+    public static void main(String[] args) {
+        ModemClientStress stress = new ModemClientStress();
+        try {
+            stress.parseArgs(args);
+            System.exit(stress.run() ? 0 : 1);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+            System.exit(1);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: mdmcli-stress [--instances A,B] [--threads N]"
+                           + " [--duration SECONDS]");
+        System.err.println("  --threads: threads calling operations, per instance");
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            try {
+                if ("--instances".equals(args[i - 1])) {
+                    String[] ids = value.split(",");
+                    mInstances = new int[ids.length];
+                    for (int n = 0; n < ids.length; n++) {
+                        mInstances[n] = Integer.parseInt(ids[n].trim());
+                    }
+                } else if ("--threads".equals(args[i - 1])) {
+                    mThreads = Integer.parseInt(value);
+                } else if ("--duration".equals(args[i - 1])) {
+                    mDuration = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid value for " + args[i - 1]);
+            }
+        }
+        if (mInstances.length < 1 || mThreads < 1 || mDuration < 1) {
+            throw new IllegalArgumentException("Invalid parameters");
+        }
+    }
+
+    private synchronized void error(String message) {
+        System.err.println(message);
+        mErrors.add(message);
+    }
+
+    private boolean run() throws Exception {
+        Instance[] instances = new Instance[mInstances.length];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < mInstances.length; i++) {
+            instances[i] = new Instance(mInstances[i]);
+            threads.add(new Thread(instances[i].cycler(), "stress-connect-" + mInstances[i]));
+            for (int t = 0; t < mThreads; t++) {
+                threads.add(new Thread(instances[i].caller(t),
+                                       "stress-call-" + mInstances[i] + "-" + t));
+            }
+        }
+
+        mDeadline = System.nanoTime() + mDuration * 1000000000L;
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        StringBuilder json = new StringBuilder("{\"instances\": [");
+        for (int i = 0; i < instances.length; i++) {
+            json.append((i > 0) ? ", " : "");
+            instances[i].appendTo(json);
+        }
+        json.append("], \"errors\": ").append(mErrors.size()).append("}\n");
+        System.out.print(json);
+        System.out.flush();
+        return mErrors.isEmpty();
+    }
+
+    private boolean running() {
+        return System.nanoTime() - mDeadline < 0;
+    }
+
+    /* Threads and counters of one modem management instance */
+    private final class Instance {
+        final int id;
+        final ModemStatusManager manager;
+        final AtomicLong connections = new AtomicLong();
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong failedCalls = new AtomicLong();
+
+        Instance(int id) throws InstantiationException {
+            this.id = id;
+            /* No Looper here: events are delivered by a thread of the instance */
+            this.manager = ModemStatusManager.getInstance(null, id, null);
+        }
+
+        /* Connects, waits for the status sent by the stub, then disconnects */
+        Runnable cycler() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    while (running()) {
+                        try {
+                            manager.connect(CLIENT_NAME + "-" + id);
+                            connections.incrementAndGet();
+                            if (!manager.waitForModemStatus(ModemStatus.DEAD, STATUS_TIMEOUT)) {
+                                error("Instance " + id + ": no status after connection "
+                                      + connections.get());
+                            }
+                        } catch (ModemClientException ex) {
+                            error("Instance " + id + ": " + ex);
+                        } catch (RuntimeException ex) {
+                            error("Instance " + id + ": " + ex);
+                        } finally {
+                            manager.disconnect();
+                        }
+                    }
+                }
+            };
+        }
+
+        /* Calls operations, connected or not */
+        Runnable caller(final int index) {
+            final String[] causes = { "mdmcli-stress", Integer.toString(index) };
+            return new Runnable() {
+                @Override
+                public void run() {
+                    while (running()) {
+                        try {
+                            calls.incrementAndGet();
+                            switch ((int)(calls.get() % 4)) {
+                            case 0:
+                                manager.acquireModem();
+                                manager.releaseModem();
+                                break;
+                            case 1:
+                                manager.notifyDebugInfo(causes, DebugInfoType.STATS,
+                                                        DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                                        DebugInfoLog.DBG_DEFAULT_NO_LOG,
+                                                        DebugInfoLog.DBG_DEFAULT_NO_LOG);
+                                break;
+                            case 2:
+                                manager.updateModem();
+                                break;
+                            default:
+                                manager.getDroppedEventCount();
+                                break;
+                            }
+                        } catch (ModemClientException ex) {
+                            /* Expected while disconnected */
+                            failedCalls.incrementAndGet();
+                        } catch (RuntimeException ex) {
+                            error("Instance " + id + ": " + ex);
+                        }
+                    }
+                }
+            };
+        }
+
+        void appendTo(StringBuilder json) {
+            json.append("{\"instance\": ").append(id)
+            .append(", \"connections\": ").append(connections.get())
+            .append(", \"calls\": ").append(calls.get())
+            .append(", \"failedCalls\": ").append(failedCalls.get()).append('}');
+        }
+    }
+}